@@ -400,49 +400,54 @@ public class DBservice {
    /** executes database query */
    public ResultSet query(String sql) throws SQLException {
       ResultSet rs = null;
+      Log.spanStart("DBservice", "query");
       try { //read from DB, like "select OPS$Q4VTCH3.Orders_ID_seq.nextval from dual"
          rs = _stmt.executeQuery(sql); //never returns null
          return rs;
       }
       catch(SQLException e){//thrown if err or statement produces anything other than a single ResultSet
-         if(log.level >= Log.ERROR) log.error(e, "query(): error doing sql=\n"+sql);
+         log.error(e, "query(): error doing sql=\n{}", sql);
          throw e;
       }
+      finally{Log.spanStop("DBservice", "query");}
       //finally{if(autoConnect) close();}
    }
    /** executes database query that returns single numeric (long, int) value. DB Null returns as 0.
    Logs error and throws SQLException if no data found. */
    public long queryInt (String sql) throws SQLException {
+      Log.spanStart("DBservice", "queryInt");
       try {
          if(autoConnect) open();
          ResultSet rs = query(sql);
          if(!rs.next()) {
-            if(log.level >= Log.ERROR) log.error("queryInt(): no data found by sql=\n"+sql);
+            log.error("queryInt(): no data found by sql=\n{}", sql);
          }
          return rs.getLong(1); //produces SQLException if no data found
       }
-      finally{if(autoConnect) close();}
+      finally{if(autoConnect) close(); Log.spanStop("DBservice", "queryInt");}
    }
    /** executes database query that returns single string. Convenient to get sysdate, systimestamp, etc.
    Logs error and throws SQLException if no data found. */
    public String queryString (String sql) throws SQLException {
+      Log.spanStart("DBservice", "queryString");
       try {
          if(autoConnect) open();
          ResultSet rs = query(sql);
          if(!rs.next()) {
-            if(log.level >= Log.ERROR) log.error("queryInt(): no data found by sql=\n"+sql);
+            log.error("queryInt(): no data found by sql=\n{}", sql);
          }
          return rs.getString(1); //produces SQLException if no data found
       }
-      finally{if(autoConnect) close();}
+      finally{if(autoConnect) close(); Log.spanStop("DBservice", "queryString");}
    }
 
    //--------- Insert, update and delete to single row -----------
    /** executes update/insert/delete and commits if rowcount==1. If rowcount!=1, throws runtime (catch or ignore on your
    discretion) ConcurrentModificationException to indicate that underlying single data row is not found anymore. */
    public void execRowChange(String sql) throws SQLException, java.util.ConcurrentModificationException {
-      if(log.level >= Log.DEBUG) log.debug("execRowChange() sql=\n"+sql);
+      log.debug("execRowChange() sql=\n{}", sql);
       int rowCount = -1;
+      Log.spanStart("DBservice", "execRowChange");
       try { //exec in DB like "update export_sequence set .. where series_id=1"
          if(autoConnect) open();
          rowCount = _stmt.executeUpdate(sql);
@@ -450,16 +455,16 @@ public class DBservice {
             _conn.commit();
          else if(rowCount != 1) { //notify caller of the problem with update
             transactionRollback();
-            if(log.level >= Log.ERROR) log.error("execRowChange(): error doing change, row count="+rowCount+" i.e. !=1, changes rolled back.");
+            log.error("execRowChange(): error doing change, row count={} i.e. !=1, changes rolled back.", rowCount);
             throw new ConcurrentModificationException("row count!=1, changes rolled back. sql=\n"+sql);
          }
       }
       catch(SQLException e){
-         if(log.level >= Log.ERROR) log.error(e, "execRowChange(): error doing sql=\n"+sql);
+         log.error(e, "execRowChange(): error doing sql=\n{}", sql);
          transactionRollback();
          throw e;
       }
-      finally{if(autoConnect) close();}
+      finally{if(autoConnect) close(); Log.spanStop("DBservice", "execRowChange");}
    }
    /** executes insert and returns value generated for IDENTITY or SEQUENCE column named in idColName. If idColName==null or
    stmt.getGeneratedKeys() does not return any rows, returns -1. Input SQL can be of the form like below: <br/>
@@ -469,8 +474,9 @@ public class DBservice {
    @throws SQLFeatureNotSupportedException if idColName!=null and used JDBC driver does not support getGeneratedKeys() method.*/
    public long execRowInsert(String sql, String idColName)
     throws SQLException, SQLFeatureNotSupportedException, java.util.ConcurrentModificationException {
-      if(log.level >= Log.DEBUG) log.debug("execRowInsert() idColName="+idColName+" sql=\n"+sql);
+      log.debug("execRowInsert() idColName={} sql=\n{}", idColName, sql);
       long rowCount = -1, generatedID=-1;
+      Log.spanStart("DBservice", "execRowInsert");
       try { //exec in DB like "update export_sequence set .. where series_id=1"
          if(autoConnect) open();
          String[] colIDs = new String[]{idColName};
@@ -482,7 +488,7 @@ public class DBservice {
             _conn.commit();
          else if(rowCount != 1) { //notify caller of the problem with update
             transactionRollback();
-            if(log.level >= Log.ERROR) log.error("execRowInsert(): error doing change, row count="+rowCount+" i.e. !=1, changes rolled back.");
+            log.error("execRowInsert(): error doing change, row count={} i.e. !=1, changes rolled back.", rowCount);
             throw new ConcurrentModificationException("row count!=1, changes rolled back. sql=\n"+sql);
          }
          if(idColName != null) {
@@ -493,11 +499,11 @@ public class DBservice {
          return generatedID;
       }
       catch(SQLException e){
-         if(log.level >= Log.ERROR) log.error(e, "execRowInsert(): error doing sql=\n"+sql);
+         log.error(e, "execRowInsert(): error doing sql=\n{}", sql);
          transactionRollback();
          throw e;
       }
-      finally{if(autoConnect) close();}
+      finally{if(autoConnect) close(); Log.spanStop("DBservice", "execRowInsert");}
    }
 
    /** executes update/insert/delete using PreparedStatement and params extracted from paramLst, calls execRowChangeSpec() */
@@ -513,9 +519,10 @@ public class DBservice {
    Corresponding hashtable value expected to be of type String, Long, Double, java.sql.Date, String for CLOB and
    byte[] for BLOB. Commits if rowcount==1, rollbacks and throws runtime ConcurrentModificationException otherwise */
    protected long execRowChangeSpec(String sql, HashMap paramLst, boolean call, String idColName) throws SQLException {
-      if(log.level>=Log.DEBUG)log.debug("execRowChangeSpec() idColName="+idColName+" paramLst.size="+paramLst.size()+" sql=\n"+sql);
+      log.debug("execRowChangeSpec() idColName={} paramLst.size={} sql=\n{}", idColName, paramLst.size(), sql);
       long rowCount = -1, generatedID = -1;
       java.sql.PreparedStatement preparedStatement = null;
+      Log.spanStart("DBservice", "execRowChangeSpec");
       try { //exec in DB like "update web_user set photo=? where web_user_id=1"
          if(autoConnect) open();
          if(call)
@@ -564,12 +571,12 @@ public class DBservice {
             _conn.commit();
          else if(rowCount != 1) { //notify caller of the problem with update
             transactionRollback();
-            if(log.level >= Log.ERROR) log.error("execRowChangeSpec(): error doing change, row count="+rowCount+" i.e. !=1, changes rolled back.");
+            log.error("execRowChangeSpec(): error doing change, row count={} i.e. !=1, changes rolled back.", rowCount);
             throw new ConcurrentModificationException("row count!=1, changes rolled back. sql=\n"+sql);
          }
       }
       catch(SQLException e){
-         if(log.level >= Log.ERROR) log.error(e, "execRowChangeSpec(): error doing sql=\n"+sql);
+         log.error(e, "execRowChangeSpec(): error doing sql=\n{}", sql);
          transactionRollback();
          throw e;
       }
@@ -577,9 +584,10 @@ public class DBservice {
          if(preparedStatement != null)
             preparedStatement.close();
          if(autoConnect) close();
+         Log.spanStop("DBservice", "execRowChangeSpec");
       }
       if(rowCount != 1) { //notify caller of the problem with update
-         if(log.level >= Log.ERROR) log.error("execRowChangeSpec(): error doing change, row count="+rowCount+" i.e. !=1, changes rolled back.");
+         log.error("execRowChangeSpec(): error doing change, row count={} i.e. !=1, changes rolled back.", rowCount);
          throw new SQLException("execRowChangePrep(): row count!=1, changes rolled back. sql=\n"+sql);
       }
       return generatedID;
@@ -589,7 +597,8 @@ public class DBservice {
    /** executes SQL statement by calling Statement.executeUpdate(). Commits if(!inTransaction). If exception, logs error and rethrow.
    @returns either the row count for INSERT/UPDATE/DELETE, or 0 for statements that return nothing. */
    public int execUpdate(String sql) throws SQLException {
-      if(log.level >= Log.DEBUG) log.debug("execUpdate(sql), sql=\n"+sql);
+      log.debug("execUpdate(sql), sql=\n{}", sql);
+      Log.spanStart("DBservice", "execUpdate");
       try { //DDL like "create table ..."
          if(autoConnect) open();
          int res = _stmt.executeUpdate(sql);
@@ -598,16 +607,17 @@ public class DBservice {
          return res;
       }
       catch(SQLException e){
-         if(log.level >= Log.ERROR) log.error(e, "execUpdate(): error doing sql=\n"+sql);
+         log.error(e, "execUpdate(): error doing sql=\n{}", sql);
          throw e;
       }
-      finally{if(autoConnect) close();}
+      finally{if(autoConnect) close(); Log.spanStop("DBservice", "execUpdate");}
    }
    /** executes SQL statement (often DDL) by calling Statement.execute(). Commits if(!inTransaction). If exception, logs error and rethrow.
    Returns true if the first result is a ResultSet object; false if it is an update count or there are no results.
    You can obtain Statement by calling getStatement() for further processing */
    public boolean execStatement(String sql) throws SQLException {
-      if(log.level >= Log.DEBUG) log.debug("execStatement(sql), sql=\n"+sql);
+      log.debug("execStatement(sql), sql=\n{}", sql);
+      Log.spanStart("DBservice", "execStatement");
       try { //DDL like "create table ..."
          if(autoConnect) open();
          boolean res = _stmt.execute(sql);
@@ -616,10 +626,10 @@ public class DBservice {
          return res;
       }
       catch(SQLException e){
-         if(log.level >= Log.ERROR) log.error(e, "execStatement(): error doing sql=\n"+sql);
+         log.error(e, "execStatement(): error doing sql=\n{}", sql);
          throw e;
       }
-      finally{if(autoConnect) close();}
+      finally{if(autoConnect) close(); Log.spanStop("DBservice", "execStatement");}
    }
 
    //--------- Transaction -----------
@@ -630,18 +640,18 @@ public class DBservice {
          open();
          autoConnect = false;
       }
-      if(log.level >= Log.DEBUG) log.debug("transactionBegin");
+      log.debug("transactionBegin");
       inTransaction = true;
    }
    /** commits transaction and sets inTransaction=false that will direct exec{RowChange,Update,Statement}() to do commit */
    public void transactionCommit() throws SQLException {
-      if(log.level >= Log.DEBUG) log.debug("transactionCommit");
+      log.debug("transactionCommit");
       _conn.commit();
       inTransaction = false;
    }
    /** rollbacks transaction and sets inTransaction=false that will direct exec{RowChange,Update,Statement}() to do commit */
    public void transactionRollback() throws SQLException {
-      if(log.level >= Log.DEBUG) log.debug("transactionRollback");
+      log.debug("transactionRollback");
       _conn.rollback();
       inTransaction = false;
    }
@@ -1,9 +1,12 @@
 package izFrame;
 import java.io.*;       //PrintWriter,File,FileInputStream,FileReader,FileWriter,IOException
 import java.text.DateFormat;
-import java.text.DecimalFormat;
-import java.text.SimpleDateFormat;
 import java.util.*;     //Date; HashMap; Properties; Set;
+import java.util.concurrent.atomic.*;       //AtomicLong, AtomicLongArray, AtomicReferenceArray
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /** Log is logging and performance measuring utility class. It provides the following functionality:
 <ul> <li> simple static logging with functions like <i>err(), warn(), info(), trace(), dbg()</i>
@@ -26,12 +29,53 @@ from what you've grown accustomed to see in other logging frameworks. Worth ment
 </li><li> warn()/warning() and err()/error() have overloads that accept Exception as a first parameter. These
    overloads will, beside message, print out exception stack. Stack will be printed out in full, but, if logging to file,
    deepness of stack from the bottom can be regulated with the <i>stackDeepness</i> attribute, default is 7.
-</li><li> Class supports rotation of the log file that is based on time only (as it is a dominant selection for enterprise applications
+</li><li> instance functions have overloads taking template with {} placeholders and arguments, like
+   <i>log.debug("execRowChange() sql={}", sql)</i>, or Supplier of the message, like <i>log.debug(() -> dump())</i>. Message
+   text is built only if level check passed (in async mode - by the writer thread), so no <i>if(log.level >= Log.DEBUG)</i> guard is needed.
+</li><li> Class supports rotation of the log file that is based on time (as it is a dominant selection for enterprise applications
    anyway). Rotation period can vary greatly - yearly, monthly, every 10 days, every day or every hour. Default is daily.
+   Optionally file is also rotated when it reaches <i>maxFileSize</i>. Rotated files can be gzipped by background thread
+   (<i>compressRotated</i>) and limited by count (<i>maxRotatedFiles</i>) or total size (<i>maxRotatedSize</i>).
 </li><li> log file will be kept open permanently if global (static) Log.level >= INFO (i.e. INFO, TRACE, DEBUG). When Log.level is ERROR or
    WARNING, log file is opened and closed for each logging function invocation.
-</li><li> Standard message format is: [timestamp as yy-MM-dd HH:mm:ss.SS] [level: E,W,I,T,D] [message source (instance calls only):] [message].
-   <br/>Sample:<br/> <i>03-11-15 15:11:50.43 D com.igor.Mod: constructor called.</i>
+</li><li> file is written through FileChannel with large direct buffer (<i>fileBufferSize</i>), text is encoded to UTF-8 straight into
+   it, so writing message allocates nothing. Buffered data is flushed after every message by default or, with <i>flushPolicy</i>,
+   every <i>flushCount</i> messages, <i>flushBytes</i> bytes or <i>flushMillis</i> milliseconds. For audit-grade logs <i>fsync</i> forces data to disk on every flush or after ERROR messages.
+</li><li> console (<i>logToConsole</i>) is written by background thread: lines are appended to large buffer (<i>consoleBufferSize</i>)
+   that is written to System.out at once, so slow console pipe does not stall threads waiting for Log lock. Exception stack goes
+   to console in the same form as to the file. <i>consoleFullPolicy</i> sets what happens when buffer is full,
+   <i>Log.consoleAsync=false</i> brings back println() by the calling thread.
+</li><li> in async mode (<i>Log.async=true</i>) calling thread only puts message into bounded lock-free ring buffer and returns,
+   single background thread writes messages to console, file and appenders in batches. When buffer is full, caller waits,
+   drops the message or drops only messages less severe than <i>asyncDropLevel</i> - see <i>asyncFullPolicy</i>.
+</li><li> flight recorder (<i>Log.recorderSize=N</i>) keeps in memory last N events of each thread that are below log level but
+   within <i>recorderLevel</i> (DEBUG by default). When thread logs ERROR, they are written to the log before the error, so
+   production can run at INFO level and still get debug history of failures. Log.dumpRecorder() writes them on demand,
+   Log.clearRecorder() forgets them (Web.service() does it for every request). Template arguments are formatted at dump time.
+</li><li> log storms can be limited: with <i>Log.dedupLimit=N</i> only N identical events (same logger, level, message template or
+   text and exception) are logged per <i>dedupInterval</i> seconds, the rest is reported by one message like "suppressed 4,812
+   identical events in last 10s: ...". Limit can be set per class (Log.dedupLimit@com.ibm.lana=5), it applies to events of
+   <i>dedupLevel</i> and more severe ones. Stack text of repeated exceptions is taken from cache instead of being rebuilt.
+</li><li> Standard message format is: [timestamp as yy-MM-dd HH:mm:ss.SS] [level: E,W,I,T,D] [message source (instance calls only):]
+   [diagnostic context if set] [message].
+   <br/>Sample:<br/> <i>03-11-15 15:11:50.43 D com.igor.Mod: [req=k2x9-1f user=lana usecase=PlaceOrder] constructor called.</i>
+</li><li> diagnostic context: fixed slots request, session, user and use case of the thread (setContext(CTX_USER, id), ...) are
+   added to every event the thread logs - to text line, to "ctx" object of JSON line and to binary record. Web.service() fills
+   them for every request. Slots are kept in array of the thread, so setting them and logging with them does not allocate.
+   contextSnapshot()/contextRestore() carry context over to other thread, Log.wrap() does it for wrapped tasks.
+</li><li> level override: one customer can be debugged without raising level of everybody. Log.levelOverride@user.lana=debug
+   (or session.ID, usecase.Name, req.ID) in config, or setLevelOverride(CTX_USER, "lana", DEBUG) from admin use case, raises
+   level of threads whose diagnostic context has that value. Level check of other threads costs one static flag read while
+   overrides exist and nothing otherwise; thread's effective level is looked up only for messages below logger's level.
+</li><li> log file format can be switched (<i>Log.format</i>) from text to JSON lines (fields ts, level, logger, thread, ctx, msg, exception)
+   or to compact binary records with timestamps as longs and logger names, thread names and message templates written once per
+   file. Binary files are turned back to text with <i>java izFrame.LogDecoder logFile</i>. Console output is always text.
+</li><li> with <i>Log.index=true</i> text and JSON files get sidecar index (fileNm.idx) of byte offsets of every <i>indexBucket</i>
+   seconds and of events logged under index id set by Log.setIndexId(requestId). <i>java izFrame.LogQuery -from "26-10-17 14:05"
+   -to "26-10-17 14:06" [-id requestId] logFiles</i> then reads only those parts of current and rotated files.
+</li><li> Log.getMetrics() returns what logging costs: events written per level, bytes written, flush count and duration, rotations,
+   appender failures, async buffer and appender queue depth, dropped and suppressed events. Same values are attributes of
+   platform MBean <i>izFrame:type=Log</i> (<i>Log.jmx=false</i> turns it off), so logging becoming bottleneck can be alerted on.
 </li></ul>
 <b>Example</b><pre> <code>
 package igor.lana.alex.andrii;
@@ -67,12 +111,27 @@ class MyApp {
 <b>Configuring log Level and other features </b> <br/>
 Class is configured by adding entries that start with 'Log.' to the configuration file. Configuration option name for static function
 immediately follows 'Log.' (for example: Log.level=debug). 'per class type / instance' config options should include class or
-package name (for example Log.level@com.Middleware.Accounts=debug).
-<br/> - Global (static) configuration options are: level, logFileNm, frequency, logToFile, logToConsole, stackDeepness, classNamesNum
-<br/> - 'per class type / instance' configuration options are: level, classNamesNum, loggedClassName, appender
+package name (for example Log.level@com.Middleware.Accounts=debug). Option applies to the class or package named and everything below
+it, matching is done by whole dot separated names, so the most specific entry wins. Loggers are looked up without locking.
+<br/> - Global (static) configuration options are: level, levelOverride@slot.value, logFileNm, format, frequency, logToFile, logToConsole, stackDeepness, classNamesNum,
+   maxFileSize, compressRotated, maxRotatedFiles, maxRotatedSize, flushPolicy, flushCount, flushBytes, flushMillis, fsync, fileBufferSize,
+   index, indexBucket, jmx, recorderSize, recorderLevel, dedupLimit, dedupInterval, dedupLevel, async, asyncBufferSize, asyncFullPolicy, asyncDropLevel, appenderAsync, appenderQueueSize, appenderFullPolicy, appenderDropLevel
+<br/> - 'per class type / instance' configuration options are: level, classNamesNum, loggedClassName, appender, dedupLimit, file,
+   fileFrequency, fileMaxSize
+<br/> - messages of class or package can be routed to their own file: Log.file@izFrame.DBservice=../logs/sql.log. Routed file is
+   rotated by its own fileFrequency and fileMaxSize (Log.fileFrequency@izFrame.DBservice=HOURLY), other file options (format,
+   index, flushing) are shared. All files are written by the same writer (caller holding Log lock or async writer thread) and
+   flushed per file at the end of each batch, so routing adds no threads or locks.
 <br/> - two appenders - file and console are always awailable, other can be set in 'per class type / instance' configuration like:
    <br/> Log.appender@com.ibm.lana.alex.mod1=com.utils.emailAppender;com.utils.eventAppender
-   <br/> Appenders should implement "boolean logMessage(char level, String loggedClassName, String msg, Exception e)", are called in sequence specified in config.
+   <br/> Appenders should implement Log.Appender interface, are called in sequence specified in config. izFrame.LogSocketAppender
+   streams events to local log collector over TCP or Unix domain socket in length-prefixed batches, spilling them to file while
+   collector is down. Older appenders that just have
+   "public boolean logMessage(char level, String loggedClassName, String msg, Exception e)" method are still supported. Appender list
+   is resolved once when logger is configured, so calling appenders costs no more than calling interface method.
+   <br/> With <i>Log.appenderAsync=true</i> (or Log.appenderAsync@appenderClass=true for specific appender) each appender gets its own
+   bounded queue and worker thread, so slow or failing appender does not delay callers, file or other appenders. Queue size and
+   full queue handling are set with appenderQueueSize, appenderFullPolicy, appenderDropLevel (also per appender with @appenderClass).
 <br/>As was mentioned above, don't worry much about setting configuration - in vast majority of cases defaults will be fine. If you need to
 know more about any specific option, just check javadoc for the correspondingly named member of the Log class. Keep in mind, for static
 options coresponding Log class member name will be one prefixed with the underscore, like static <i>_level</i> vs. instance <i>level</i>.
@@ -137,8 +196,29 @@ You can use these functions in 3 different flavors, depending on parameters pass
    and module name is function name - used for monitoring function performance that include intermediate steps. Place traceStart()
    at function entry and traceStop() at function exit and use function name as module name.
 </li></ul>
-Note, we try to limit memory and processing power consumption so total number of traced modules should be less then 256 as
-performance information is stored in memory until module's traceStop() call is made.
+Note, we try to limit memory and processing power consumption so number of modules traced at the same time by one thread should
+be less then 256 as performance information is stored in memory until module's traceStop() call is made.
+Timing information is kept per thread (modules are timed with System.nanoTime() on a thread local stack), so tracing threads
+do not wait on each other, but module started in one thread is visible only to trace(), traceStop() and traceClose() calls
+of the same thread. With resBlended=true, blended stream of the thread is logged when its last module is stopped.
+Work handed to other threads is followed with Log.wrap(runnable), Log.wrap(callable) or Log.wrap(executor): trace context (and
+diagnostic context) of the submitting thread is captured and restored in the thread that runs the task, task is timed as module nested in the
+modules that submitted it. With <i>traceFlameFile</i> set, self time of every module is appended to that file by collapsed
+stack, like <i>MyServlet;UseCaseX.execute;DBservice.query 1234</i> (microseconds), when the thread stops its last module or calls
+traceClose() - the file is ready for flame graph tools and shows where request time goes end to end. With <i>traceEventFile</i>
+set, every module start and stop is written as begin/end event of Chrome trace-event JSON (thread id, microsecond timestamp),
+so whole load test run can be opened in chrome://tracing or Perfetto timeline. Events are collected per thread and appended
+to the file each time the thread stops its last module, nothing is kept in memory beyond one trace of a thread.
+Tracing can be sampled: thread between traceSampledStart() and traceSampledStop() is traced as if log level was TRACE,
+Web.service() does it for 1 in Web.traceSampleRate requests or when request has Web.traceForceParam header, at most
+Web.traceMaxPerSec requests per second either way (see TraceSampler). Layers mark their operations with spanStart(cls,
+operation)/spanStop(), which time UseCase.execute() and DBservice queries of sampled requests. For the others they cost read
+of the shared number of sampled threads, and thread local lookup while that number is not 0.
+</p><p>
+Besides, duration of every traceStart()/traceStop() pair is recorded in latency histogram of the module (moduleID, or class
+name for traceStart(Object)). Histograms are fixed size log-linear ones, shared by threads and updated without locks.
+traceReport() writes count, mean, p50, p90, p99, p99.9 and max duration of each module to the log or traceReportFile, it is
+also called every traceReportPeriod seconds when this option is set. traceReport(false) returns report text.
 </p><p>
 <b>To reiterate</b>
 <ul> <li> Log.traceStart(this) - begins saving performance information, uses class name as monitoring thread ID
@@ -227,9 +307,23 @@ public class Log {
    /** log file _frequency rotation constants: HOURLY=11, DAILY=8, DAY10=7, MONTHLY=5, YEARLY=2;
    Numbers are based on index of changing character in _dateFormat */
    public static final int HOURLY=11, DAILY=8, DAY10=7, MONTHLY=5, YEARLY=2;
+   /** async mode 'buffer is full' policy constants: FULL_BLOCK=0, FULL_DROP=1, FULL_DROP_BELOW=2 */
+   public static final int FULL_BLOCK=0, FULL_DROP=1, FULL_DROP_BELOW=2;
+   /** file flush policy constants: FLUSH_MESSAGE=0, FLUSH_COUNT=1, FLUSH_BYTES=2, FLUSH_TIME=3 */
+   public static final int FLUSH_MESSAGE=0, FLUSH_COUNT=1, FLUSH_BYTES=2, FLUSH_TIME=3;
+   /** file fsync policy constants: FSYNC_NEVER=0, FSYNC_FLUSH=1 (every flush), FSYNC_ERROR=2 (after ERROR events) */
+   public static final int FSYNC_NEVER=0, FSYNC_FLUSH=1, FSYNC_ERROR=2;
+   /** log file format constants: FORMAT_TEXT=0 (usual text lines), FORMAT_JSON=1 (JSON lines), FORMAT_BINARY=2 (see LogDecoder) */
+   public static final int FORMAT_TEXT=0, FORMAT_JSON=1, FORMAT_BINARY=2;
    /** new line constant */
    private static final String cr = System.getProperty("line.separator");
-   /** String date format used for usual logging functionality, default "yy-MM-dd HH:mm:ss.SS" */
+   /** message level chars from ERROR to DEBUG */
+   private static final String LEVEL_CHARS = "EWITD";
+   /** diagnostic context slots: request id (index id of sidecar index), session id, user id, use case name */
+   public static final int CTX_REQUEST = 0, CTX_SESSION = 1, CTX_USER = 2, CTX_USECASE = 3;
+   /** names context slots are shown with in text lines and JSON "ctx" object */
+   static final String[] CTX_NAMES = {"req", "session", "user", "usecase"};
+   /** String date format used for usual logging functionality, default "yy-MM-dd HH:mm:ss.SS", produced by TimeStamp */
    private static String _dateFormat = "yy-MM-dd HH:mm:ss.SS";
 
    //--- CONFIGURATION OPTIONS ---
@@ -244,56 +338,263 @@ public class Log {
    protected static int _frequency = DAILY;
    /** log file name, default is "../logs/izApp.log". If directory does not exist, it will be created. */
    private static String _logFileNm = "../logs/izApp.log";
+   /** log file format: FORMAT_TEXT, FORMAT_JSON - one JSON object per line with fields ts (millis since 1970), level, logger,
+   thread, msg, exception, FORMAT_BINARY - compact records decoded to text by LogDecoder. Console output is always text.
+   Configured in properties as: Log.format=text|json|binary. Default FORMAT_TEXT */
+   public static int _format = FORMAT_TEXT;
+   /** when buffered file data is written to the file: FLUSH_MESSAGE - after every message (in async mode after every batch),
+   FLUSH_COUNT - every _flushCount messages, FLUSH_BYTES - every _flushBytes bytes, FLUSH_TIME - every _flushMillis. With count
+   and bytes policies data waiting longer than _flushMillis is flushed as well. Configured as: Log.flushPolicy=message|count|bytes|time.
+   Default FLUSH_MESSAGE */
+   public static int _flushPolicy = FLUSH_MESSAGE;
+   /** number of messages between flushes for FLUSH_COUNT policy, default 100 */
+   public static int _flushCount = 100;
+   /** number of bytes between flushes for FLUSH_BYTES policy, default 64K */
+   public static long _flushBytes = 64*1024;
+   /** max time in milliseconds data waits in buffer for FLUSH_TIME, FLUSH_COUNT and FLUSH_BYTES policies, default 1000 */
+   public static int _flushMillis = 1000;
+   /** when flushed data is forced to disk (fsync): FSYNC_NEVER (left to OS), FSYNC_FLUSH - on every flush, FSYNC_ERROR - after
+   ERROR messages, i.e. errors are on disk before logging call returns in sync mode. Configured as: Log.fsync=never|flush|error.
+   Default FSYNC_NEVER */
+   public static int _fsync = FSYNC_NEVER;
+   /** size of log file direct buffer, bursts of messages are collected in it and written with few write calls. Default 256K */
+   public static int _fileBufferSize = 256*1024;
+   /** if true, text and JSON log files get sidecar index fileNm.idx (rotated and deleted together with the file) holding byte
+   offset of every _indexBucket seconds of the log and byte ranges of events logged under the same index id (see setIndexId()),
+   LogQuery uses it to read only the requested part of the files. Configured as: Log.index=true. Default false */
+   public static boolean _index = false;
+   /** time bucket of the sidecar index in seconds, default 1 */
+   public static int _indexBucket = 1;
+   /** max log file size in bytes, when reached file is rotated even if rotation period did not end. Default 0 - no limit.
+   Configured in properties as: Log.maxFileSize=256MB */
+   public static long _maxFileSize = 0;
+   /** if true, rotated log files are compressed to .gz by background thread. Default false */
+   public static boolean _compressRotated = false;
+   /** number of rotated log files to keep, older ones are deleted. Default 0 - keep all */
+   public static int _maxRotatedFiles = 0;
+   /** max total size of rotated log files in bytes, older ones are deleted when exceeded. Default 0 - no limit */
+   public static long _maxRotatedSize = 0;
    /** limits deepness of exception stack logged, used only if _preJDK1_4 = false. Default is 7 */
    public static int _stackDeepness = 7;
+   /** if true, loadConfig() registers platform MBean "izFrame:type=Log" exposing getMetrics() values. Default true */
+   public static boolean _jmx = true;
    /** global value for max number of dot separated entries in the class name displayed in the log message, default=-1 that is show all.
    Configured in properties as: Log.classNamesNum=... */
    protected static int _classNamesNum = -1;
+   //--- FLIGHT RECORDER related config values------
+   /** number of recent events each thread keeps in memory when they are below log level, dumped to the log when thread logs
+   ERROR or calls dumpRecorder(). Default 0 - recorder is off */
+   public static int _recorderSize = 0;
+   /** most detailed level recorder keeps, default DEBUG. Events between log level and this one are recorded, not written */
+   public static int _recorderLevel = DEBUG;
+   //--- DEDUPLICATION related config values------
+   /** max number of identical events (same logger, level, message template or text and exception signature) logged per
+   _dedupInterval, following ones are counted and reported by one 'suppressed N identical events' message. Can be set per
+   class with Log.dedupLimit@com.ibm... option. Default 0 - no limit */
+   public static int _dedupLimit = 0;
+   /** dedup interval in seconds, default 10 */
+   public static int _dedupInterval = 10;
+   /** only events of this level or more severe are limited, default WARNING */
+   public static int _dedupLevel = WARNING;
    //--- TIMING related config values------
    /** true, activates performance timing for trace() type calls. False makes then do normal logging */
    public static boolean _traceTiming = true;
    /** if true, timing results of different modules would be intermixed rather then shown separately */
    public static boolean _resBlended = false;
+   /** period in seconds of latency report (count, mean, percentiles, max per traced module), default 0 - no periodic report */
+   public static int _traceReportPeriod = 0;
+   /** file latency report is appended to, default null - report goes to the log */
+   public static String _traceReportFile = null;
+   /** if true, latency histograms are cleared after each report, so report covers only last period. Default false */
+   public static boolean _traceReportReset = false;
+   /** file collapsed stacks of traced modules are appended to: lines like "MyServlet;UseCaseX.execute;DBservice.query 1234"
+   with self time of the module in microseconds, ready for flame graph tools (flamegraph.pl, speedscope). Lines of the thread
+   are written when its last module stops (or on traceClose()). Default null - collapsed stacks are not written */
+   public static String _traceFlameFile = null;
+   /** file module starts and stops are appended to as Chrome trace-event JSON ("ph":"B"/"E" events with thread id and
+   microsecond timestamp) for chrome://tracing or Perfetto. File starts with '[' and is never closed with ']', which both
+   viewers accept, so it can be appended to and opened while being written. Module stopped before modules started after it
+   ends their events as well, so B/E pairs of the thread stay nested. Default null - trace events are not written */
+   public static String _traceEventFile = null;
+   //--- ASYNC mode related config values------
+   /** if true, callers put log events into the bounded ring buffer and return immediately, single background writer thread
+   writes them to console, file and appenders. Default false, i.e. caller thread writes message itself */
+   public static boolean _async = false;
+   /** size of async ring buffer (rounded up to the power of 2), read when writer starts. Default 8192 */
+   public static int _asyncBufferSize = 8192;
+   /** what caller does when async ring buffer is full: FULL_BLOCK (wait for free slot), FULL_DROP (drop event) or
+   FULL_DROP_BELOW (drop events less severe than _asyncDropLevel, wait for others). Default FULL_BLOCK */
+   public static int _asyncFullPolicy = 0;
+   /** events less severe than this level are dropped when buffer is full and _asyncFullPolicy == FULL_DROP_BELOW. Default WARNING */
+   public static int _asyncDropLevel = WARNING;
+   /** if true, each appender gets its own bounded queue and worker thread, so slow or failing appender does not delay callers,
+   console and file. Async appender can't consume message (stop its processing). Can be set per appender with
+   Log.appenderAsync@appenderClass option. Default false */
+   public static boolean _appenderAsync = false;
+   /** default size of appender queue, can be set per appender with Log.appenderQueueSize@appenderClass. Default 1024 */
+   public static int _appenderQueueSize = 1024;
+   /** default policy (FULL_BLOCK, FULL_DROP, FULL_DROP_BELOW) when appender queue is full, can be set per appender with
+   Log.appenderFullPolicy@appenderClass. Default FULL_DROP */
+   public static int _appenderFullPolicy = FULL_DROP;
+   /** events less severe than this level are dropped from full appender queue with FULL_DROP_BELOW policy, can be set per
+   appender with Log.appenderDropLevel@appenderClass. Default WARNING */
+   public static int _appenderDropLevel = WARNING;
+   //--- console related config values------
+   /** if true, console lines are appended to in-memory buffer and background thread writes them to System.out, so slow console
+   (like pipe read by container runtime) delays only that thread, not callers holding Log lock. Exception stack is written as
+   to the file (see _stackDeepness). False - caller writes line with System.out.println() and exception with printStackTrace()
+   itself. Default true */
+   public static boolean _consoleAsync = true;
+   /** size of console buffer in chars, read when console thread starts. Default 1M */
+   public static int _consoleBufferSize = 1024*1024;
+   /** what caller does when console buffer is full: FULL_BLOCK (line is added, caller waits until console thread takes the
+   buffer - after it released Log lock, so other threads are not held up), FULL_DROP (drop line) or FULL_DROP_BELOW (drop
+   lines less severe than _consoleDropLevel, wait for others). Number of dropped lines is written to console afterwards,
+   drops and waits are counted in getMetrics(). Default FULL_BLOCK */
+   public static int _consoleFullPolicy = FULL_BLOCK;
+   /** lines less severe than this level are dropped when console buffer is full and _consoleFullPolicy == FULL_DROP_BELOW. Default WARNING */
+   public static int _consoleDropLevel = WARNING;
 
    //--- INSTANCE config values ---
-   /** instance log level, default level = DEBUG */
-   protected int level = DEBUG;
-   /** attached class type name provided in the Log.getLog("myClass1") or Log.getLog(this) call (this => getClass().getName())) */
-   private String loggedClassName = "";
-   /** max number of dot separated entries in the class name displayed in the log message starting from the deepest one */
-   private int classNamesNum = -1;
-   /** some people want to be fancy and use something other than console and file for logging, they can save name(s) of this as
-   'appender'. If Log detects one, function processAppenders() would get called before calling logMessage() */
-   protected String appenderName;
+   /** instance log level, default level = DEBUG. Copy of settings.level for guards like <i>if(log.level >= Log.DEBUG)</i> */
+   protected volatile int level = DEBUG;
+   /** level instance logging functions check: level, raised to recorder level while flight recorder is on, so events below
+   level reach the recorder. Kept apart from level, so application guards don't build messages for the recorder */
+   private volatile int threshold = DEBUG;
+   /** instance configuration, immutable: config() replaces it as a whole, so logging calls never see half updated one */
+   private volatile Settings settings;
+
+   /** immutable instance configuration: level, loggedClassName, classNamesNum, appenders */
+   static final class Settings {
+      final int level;
+      /** attached class type name provided in the Log.getLog("myClass1") or Log.getLog(this) call (this => getClass().getName())) */
+      final String loggedClassName;
+      /** max number of dot separated entries in the class name displayed in the log message starting from the deepest one */
+      final int classNamesNum;
+      /** some people want to be fancy and use something other than console and file for logging, they can save name(s) of this as
+      'appender'. If Log detects one, function processAppenders() would get called before calling logMessage() */
+      final String appenderName;
+      /** appenders listed in appenderName, null if there are no appenders */
+      final Appender[] appenders;
+      /** max number of identical events per _dedupInterval, 0 - no limit */
+      final int dedupLimit;
+      /** file messages are routed to (Log.file@...), null - global _logFileNm */
+      final String fileNm;
+      /** rotation frequency and max size of routed file, used when the file is opened */
+      final int fileFrequency;
+      final long fileMaxSize;
+      Settings(int level, String loggedClassName, int classNamesNum, String appenderName, Appender[] appenders, int dedupLimit,
+            String fileNm, int fileFrequency, long fileMaxSize) {
+         this.level = level; this.loggedClassName = loggedClassName; this.classNamesNum = classNamesNum;
+         this.appenderName = appenderName; this.appenders = appenders; this.dedupLimit = dedupLimit;
+         this.fileNm = fileNm; this.fileFrequency = fileFrequency; this.fileMaxSize = fileMaxSize;
+      }
+   }
 
    //-------- usability and internal -------------------
    /** if true, won't use e.getStackTrace() that appeared in jdk1.4, will use e.printStackTrace(file) instead. Default false */
    protected static boolean _preJDK1_4 = false;
-   /** stores rotation important part of file opening date, relies on _df as "yy-MM-dd HH.."*/
-   protected static String _startedAt = "";
-   /** date format used for usual logging functionality - SimpleDateFormat(_dateFormat) */
-   private static DateFormat _df = new SimpleDateFormat(_dateFormat);
-   /** additinal date format used for timing (traceStart, trace) functionality */
-   private static DateFormat _tf = DateFormat.getTimeInstance(DateFormat.FULL);
-   /** handle to output file */
-   private static PrintWriter _logFile; //FileWriter
-   /** map of instance (attached to specific class type) loggers */
-   private static HashMap<String,Log> logMap;
-   /** map of instance (attached to specific class type) loggers */
-   private static HashMap<String,ArrayList<String>> logConfigMap;
-   /** mapping of appender names to classes, contains only appender classes that were already loaded */
-   private static Hashtable _loadedAppenderClasses = new Hashtable();
+   /** calendar used by nextRotationTime(), guarded by Log class lock */
+   private static final Calendar _cal = Calendar.getInstance();
+   /** timestamp cache of the file/console writing, guarded by Log class lock */
+   private static final TimeStamp _stamp = new TimeStamp();
+   /** reusable buffer log line is assembled in, guarded by Log class lock */
+   private static final CharBuf _line = new CharBuf(512);
+   /** handle to output file with its rotation state */
+   private static FileSink _fileSink;
+   /** files of Log.file@... routes by file name, guarded by Log class lock */
+   private static final HashMap<String,FileSink> _routedSinks = new HashMap<String,FileSink>();
+   /** diagnostic context of the thread, see setContext() */
+   private static final ThreadLocal<Context> _context = new ThreadLocal<Context>() {
+      protected Context initialValue() { return new Context(); }
+   };
+   /** true once any thread has set diagnostic context, until then events do not look the context up */
+   private static volatile boolean _contextUsed;
+   /** true if there are level overrides, until then level checks do not look at the thread's effective level */
+   private static volatile boolean _overrides;
+   /** level overrides by "slot=value" (like "user=lana"), replaced as a whole holding Log class lock */
+   private static volatile HashMap<String,Integer> _levelOverrides = new HashMap<String,Integer>();
+   /** incremented on every change of _levelOverrides, so threads recompute their effective level */
+   private static volatile int _overridesVersion;
+   /** map of instance (attached to specific class type) loggers, read without lock, new loggers are added holding Log class lock */
+   private static final java.util.concurrent.ConcurrentHashMap<String,Log> logMap = new java.util.concurrent.ConcurrentHashMap<String,Log>();
+   /** root of the trie of 'per class type / instance' config options (Log.level@com.ibm.lana=...), built by loadConfig() */
+   private static volatile ConfigNode _configRoot;
+   /** mapping of appender names to appender instances, contains only appender classes that were already loaded. Guarded by Log class lock */
+   private static HashMap<String,Appender> _loadedAppenderClasses = new HashMap<String,Appender>();
+   /** queues of async appenders by appender name. Changed holding Log class lock, read by getMetrics() without it */
+   private static final java.util.concurrent.ConcurrentHashMap<String,AsyncAppender> _asyncAppenders = new java.util.concurrent.ConcurrentHashMap<String,AsyncAppender>();
+   /** per appender options (Log.appenderAsync@, Log.appenderQueueSize@, ...) by config key */
+   private static HashMap<String,String> _appenderOptions = new HashMap<String,String>();
+   //--- async mode related ---
+   /** background writer thread, not null only while async mode is running */
+   private static volatile AsyncWriter _asyncWriter;
+   /** number of events dropped because async ring buffer was full */
+   private static final AtomicLong _droppedCount = new AtomicLong();
+   /** console writer thread, not null only while it runs, changed holding Log class lock */
+   private static volatile ConsoleSink _consoleSink;
+   /** console lines dropped because console buffer was full, times caller waited for console thread */
+   private static final AtomicLong _consoleDropped = new AtomicLong(), _consoleWaits = new AtomicLong();
+   /** direct buffers of log and index files by file name, guarded by Log class lock. Sink closed at the end of every batch
+   (log level below INFO) gets the same buffer when it is opened again, as direct memory is freed only by GC */
+   private static final HashMap<String,ByteBuffer> _fileBuffers = new HashMap<String,ByteBuffer>();
+   /** event reused by synchronous (non async) writing, guarded by Log class lock */
+   private static final Event _syncEvent = new Event();
+   /** scheduled task that flushes log file for FLUSH_TIME, FLUSH_COUNT and FLUSH_BYTES policies */
+   private static TimerTask _flushTask;
+   /** true once shutdown hook that drains async buffer was registered */
+   private static boolean _hookAdded = false;
+   //--- deduplication related ---
+   /** true if dedupLimit is set globally or for some class, so dispatch() has to check events */
+   private static volatile boolean _dedupUsed;
+   /** counters of recent distinct events, looked up by event signature */
+   private static final AtomicReferenceArray<DedupSlot> _dedupSlots = new AtomicReferenceArray<DedupSlot>(4096);
+   /** number of events suppressed as duplicates */
+   private static final AtomicLong _suppressedCount = new AtomicLong();
+   /** scheduled task that reports suppressed events of quiet slots */
+   private static TimerTask _dedupTask;
+   /** stack texts of recently logged exceptions by throwable signature, guarded by Log class lock */
+   private static StackText[] _stackCache = new StackText[256];
+   //--- flight recorder related ---
+   /** _recorderLevel when recorder is on, OFF otherwise */
+   private static int _recording = OFF;
+   /** recent events of the thread that were below log level */
+   private static final ThreadLocal<Recorder> _recorder = new ThreadLocal<Recorder>();
+   //--- metrics related ---
+   /** number of events written to console/file by level, indexes as in LEVEL_CHARS, last one is for trace results */
+   private static final AtomicLongArray _levelCounts = new AtomicLongArray(LEVEL_CHARS.length()+1);
+   /** bytes written to log files, sidecar index included */
+   private static final AtomicLong _bytesWritten = new AtomicLong();
+   /** number of log file rotations */
+   private static final AtomicLong _rotations = new AtomicLong();
+   /** number of exceptions thrown by appenders called directly, queued appenders count their own */
+   private static final AtomicLong _appenderFailures = new AtomicLong();
+   /** durations of log file flushes (write and force calls) in nanoseconds */
+   private static final Histogram _flushLatency = new Histogram();
+   /** name metrics MBean is registered under, null if it is not registered */
+   private static javax.management.ObjectName _mbeanName;
    //--- timing related ---
-   /** number of independent threads of monitoring (thread not in a system sense, but rather in common life one) */
+   /** max number of independent threads of monitoring (thread not in a system sense, but rather in common life one)
+   started at the same time by one thread */
    private static int _moduleNum = 256;
-   private static long[] _startArr = new long[_moduleNum];
-   private static long[] _currArr = new long[_moduleNum];
-   private static String[] _moduleIDArr = new String[_moduleNum];
-   private static String[] _moduleNmArr = new String[_moduleNum];
-   private static StringBuffer[] _msgArr = new StringBuffer[_moduleNum];
-   private static int _currIndex = 0;
-   private static int _currStep = 0;
-   private static DecimalFormat nf = new DecimalFormat(" | ##0.00");
+   /** latency histograms of traced modules by module name */
+   private static final java.util.concurrent.ConcurrentHashMap<String,Histogram> _histograms = new java.util.concurrent.ConcurrentHashMap<String,Histogram>();
+   /** daemon timer of periodic Log tasks, created on first use */
+   private static Timer _timer;
+   /** scheduled periodic traceReport() task */
+   private static TimerTask _traceReportTask;
+   /** modules started by the thread with their timing results */
+   private static final ThreadLocal<TraceStack> _traceStack = new ThreadLocal<TraceStack>() {
+      protected TraceStack initialValue() { return new TraceStack(); }
+   };
+   /** serializes appending to _traceFlameFile */
+   private static final Object _flameLock = new Object();
+   /** open _traceEventFile and its name, guarded by _traceEventLock */
+   private static Writer _traceEventOut;
+   private static String _traceEventOutNm;
+   private static final Object _traceEventLock = new Object();
+   /** number of threads running sampled trace, thread's own flag is checked only when it is not 0 */
+   private static final AtomicInteger _sampledThreads = new AtomicInteger();
 
    //--- constructor and 'multitone' pattern implmentattion ---
    /** private constructor - Log class implements so called 'multitone' pattern in which, similarly to 'singleton', you cannot call new() */
@@ -303,9 +604,12 @@ public class Log {
       return getLog(cls.getClass().getName());
    }
    /** that's an alternative and internal way to create specialized Log class instance, param can be getClass().getName() or some fancy like "MY_STUFF" */
-   public static synchronized Log getLog(String cls){
-      if(logMap == null)
-         logMap = new HashMap<String,Log>();
+   public static Log getLog(String cls){
+      Log log = logMap.get(cls); //no lock for existing loggers
+      return log != null ? log : createLog(cls);
+   }
+   /** creates and configures logger unless other thread has just done it. Lock keeps loadConfig() from missing new logger */
+   private static synchronized Log createLog(String cls){
       Log log = logMap.get(cls);
       if(log == null){
          log = new Log();
@@ -317,8 +621,8 @@ public class Log {
 
    //#########------ CONFIG FUNCTIONS --------#########
    static { loadConfig(null); } // there are reasons to do it or don't do (leave for app to init). Try default load - cautiously
-   /** reads specified configuration property file and stores data in logConfigMap, dynamically reconfigures whatever log instances we
-   already have in logMap. If null is passed in, uses config file izFrame.config */
+   /** reads specified configuration property file and stores 'per class' options in config trie, dynamically reconfigures whatever
+   log instances we already have in logMap. If null is passed in, uses config file izFrame.config */
    public static synchronized void loadConfig(String propFileNm) {
       if(propFileNm==null)
          propFileNm = "izFrame.config"; //Utils._propFileNm;
@@ -330,70 +634,128 @@ public class Log {
          props.load(fis);
          fis.close();
          //--A. read global/static config params: level, logFileNm, frequency, ...
-         _logFileNm = props.getProperty("Log.logFileNm", _logFileNm);
+         String logFileNm = props.getProperty("Log.logFileNm", _logFileNm);
+         String tmp = props.getProperty("Log.format", ""+_format);
+         int format = "json".equalsIgnoreCase(tmp) || "1".equals(tmp) ? FORMAT_JSON : "binary".equalsIgnoreCase(tmp) || "2".equals(tmp) ? FORMAT_BINARY : FORMAT_TEXT;
+         boolean index = "true".equals(props.getProperty("Log.index", ""+_index)) ?true:false;
+         if(_fileSink != null && (!logFileNm.equals(_logFileNm) || format != _format || index != _index)) { //file, its format or indexing was changed, next message opens new one
+            _fileSink.close();
+            _fileSink = null;
+         }
+         _logFileNm = logFileNm;
+         _format = format;
+         _index = index;
+         try {_indexBucket = Math.max(1, Integer.parseInt(props.getProperty("Log.indexBucket", ""+_indexBucket)));} catch(Exception e){}
          _logToFile   = "true".equals(props.getProperty("Log.logToFile",   ""+_logToFile))   ?true:false;
          _logToConsole= "true".equals(props.getProperty("Log.logToConsole",""+_logToConsole))?true:false;
+         _consoleAsync= "true".equals(props.getProperty("Log.consoleAsync",""+_consoleAsync))?true:false;
+         _consoleBufferSize = (int)Math.min(256*1024*1024, Math.max(4096, parseSize(props.getProperty("Log.consoleBufferSize"), _consoleBufferSize)));
+         _consoleFullPolicy = parseFullPolicy(props.getProperty("Log.consoleFullPolicy"), _consoleFullPolicy);
+         _consoleDropLevel = parseLevel(props.getProperty("Log.consoleDropLevel", ""+_consoleDropLevel), _consoleDropLevel);
          _traceTiming = "true".equals(props.getProperty("Log.traceTiming", ""+_traceTiming)) ?true:false;
          _resBlended  = "true".equals(props.getProperty("Log.resBlended",  ""+_resBlended))  ?true:false;
          try {_stackDeepness = Integer.parseInt(props.getProperty("Log.stackDeepness", ""+_stackDeepness));} catch(Exception e){}
+         _jmx = "true".equals(props.getProperty("Log.jmx", ""+_jmx)) ?true:false;
          try {_classNamesNum = Integer.parseInt(props.getProperty("Log.classNamesNum", ""+_classNamesNum));} catch(Exception e){}
-         String tmp = props.getProperty("Log.level", ""+_level);
-         if     ("debug".equalsIgnoreCase(tmp) || "5".equalsIgnoreCase(tmp)) _level = DEBUG;
-         else if("trace".equalsIgnoreCase(tmp) || "4".equalsIgnoreCase(tmp)) _level = TRACE;
-         else if("info".equalsIgnoreCase(tmp)  || "3".equalsIgnoreCase(tmp)) _level = INFO;
-         else if("warning".equalsIgnoreCase(tmp)||"2".equalsIgnoreCase(tmp)) _level = WARNING;
-         else if("error".equalsIgnoreCase(tmp) || "1".equalsIgnoreCase(tmp)) _level = ERROR;
-         else if("off".equalsIgnoreCase(tmp)   || "0".equalsIgnoreCase(tmp)) _level = OFF;
+         _level = parseLevel(props.getProperty("Log.level", ""+_level), _level);
          //_dateFormat = props.getProperty("Log.dateFormat", _dateFormat);
-         tmp = props.getProperty("Log.frequency", ""+_frequency);
-         if     ("HOURLY".equalsIgnoreCase(tmp) ||"11".equalsIgnoreCase(tmp)) _frequency = HOURLY;
-         else if("DAILY".equalsIgnoreCase(tmp)  || "8".equalsIgnoreCase(tmp)) _frequency = DAILY;
-         else if("DAY10".equalsIgnoreCase(tmp)  || "7".equalsIgnoreCase(tmp)) _frequency = DAY10;
-         else if("MONTHLY".equalsIgnoreCase(tmp)|| "5".equalsIgnoreCase(tmp)) _frequency = MONTHLY;
-         else if("YEARLY".equalsIgnoreCase(tmp) || "2".equalsIgnoreCase(tmp)) _frequency = YEARLY;
-         //--B. read instance config params: level, loggedClassName, classNamesNum
-         Set<String> propList = props.stringPropertyNames();
-         ArrayList<String> levArr = new ArrayList<String>(), snArr = new ArrayList<String>(), cnnArr = new ArrayList<String>(), appArr = new ArrayList<String>();
-         for(String entry : propList){
-            if(entry.startsWith("Log.level@"))
-               levArr.add(entry.substring("Log.level@".length()));
-            if(entry.startsWith("Log.classShortName@"))
-               snArr.add(entry.substring("Log.classShortName@".length()));
-            if(entry.startsWith("Log.classNamesNum@"))
-               cnnArr.add(entry.substring("Log.classNamesNum@".length()));
-            if(entry.startsWith("Log.appender@"))
-               appArr.add(entry.substring("Log.appender@".length()));
-         }
-         Collections.sort(levArr);
-         Collections.sort(snArr);
-         Collections.sort(cnnArr);
-         Collections.sort(appArr);
-         logConfigMap = new HashMap<String,ArrayList<String>>();
-         logConfigMap.put("level", levArr);
-         logConfigMap.put("classShortName", snArr);
-         logConfigMap.put("classNamesNum", cnnArr);
-         logConfigMap.put("appender", appArr);
-         //store values in corresponding 'value' arrays
-         ArrayList<String> levArV = new ArrayList<String>(), snArV = new ArrayList<String>(), cnnArV = new ArrayList<String>(), appArV = new ArrayList<String>();
-         for(String val : levArr)
-            levArV.add(props.getProperty("Log.level@"+val));
-         for(String val : snArr)
-            snArV.add(props.getProperty("Log.classShortName@"+val));
-         for(String val : cnnArr)
-            cnnArV.add(props.getProperty("Log.classNamesNum@"+val));
-         for(String val : appArr)
-            appArV.add(props.getProperty("Log.appender@"+val));
-         logConfigMap.put("levelV", levArV);
-         logConfigMap.put("classShortNameV", snArV);
-         logConfigMap.put("classNamesNumV", cnnArV);
-         logConfigMap.put("appenderV", appArV);
-         if(logMap != null){//correct whatever log configs we had in the map before, so static loggers (static Log log = Log.getLog(..)) would work OK
-            Set<String> names = logMap.keySet();
-            for(String logName : names){
-               Log log = logMap.get(logName);
-               config(log, logName); //actually this functionality is quite useful to reconfigure all loggers on the fly
+         _frequency = parseFrequency(props.getProperty("Log.frequency"), _frequency);
+         if(_fileSink != null && _fileSink.frequency != _frequency) { //next message reopens file with new rotation period
+            _fileSink.close();
+            _fileSink = null;
+         }
+         //--latency report: traceReportPeriod, traceReportFile, traceReportReset
+         try {_traceReportPeriod = Integer.parseInt(props.getProperty("Log.traceReportPeriod", ""+_traceReportPeriod));} catch(Exception e){}
+         _traceReportFile = props.getProperty("Log.traceReportFile", _traceReportFile);
+         _traceReportReset = "true".equals(props.getProperty("Log.traceReportReset", ""+_traceReportReset)) ?true:false;
+         _traceFlameFile = props.getProperty("Log.traceFlameFile", _traceFlameFile);
+         _traceEventFile = props.getProperty("Log.traceEventFile", _traceEventFile);
+         //--flight recorder: recorderSize, recorderLevel
+         try {_recorderSize = Integer.parseInt(props.getProperty("Log.recorderSize", ""+_recorderSize));} catch(Exception e){}
+         _recorderLevel = parseLevel(props.getProperty("Log.recorderLevel", ""+_recorderLevel), _recorderLevel);
+         _recording = _recorderSize > 0 ? _recorderLevel : OFF;
+         //--deduplication: dedupLimit, dedupInterval, dedupLevel
+         try {_dedupLimit = Integer.parseInt(props.getProperty("Log.dedupLimit", ""+_dedupLimit));} catch(Exception e){}
+         try {_dedupInterval = Integer.parseInt(props.getProperty("Log.dedupInterval", ""+_dedupInterval));} catch(Exception e){}
+         _dedupLevel = parseLevel(props.getProperty("Log.dedupLevel", ""+_dedupLevel), _dedupLevel);
+         //--file size rotation and rotated files handling: maxFileSize, compressRotated, maxRotatedFiles, maxRotatedSize
+         _maxFileSize = parseSize(props.getProperty("Log.maxFileSize"), _maxFileSize);
+         if(_fileSink != null)
+            _fileSink.maxFileSize = _maxFileSize;
+         _compressRotated = "true".equals(props.getProperty("Log.compressRotated", ""+_compressRotated)) ?true:false;
+         try {_maxRotatedFiles = Integer.parseInt(props.getProperty("Log.maxRotatedFiles", ""+_maxRotatedFiles));} catch(Exception e){}
+         _maxRotatedSize = parseSize(props.getProperty("Log.maxRotatedSize"), _maxRotatedSize);
+         //--file flushing: flushPolicy, flushCount, flushBytes, flushMillis, fsync, fileBufferSize
+         tmp = props.getProperty("Log.flushPolicy", ""+_flushPolicy);
+         if     ("message".equalsIgnoreCase(tmp)|| "0".equals(tmp)) _flushPolicy = FLUSH_MESSAGE;
+         else if("count".equalsIgnoreCase(tmp)  || "1".equals(tmp)) _flushPolicy = FLUSH_COUNT;
+         else if("bytes".equalsIgnoreCase(tmp)  || "2".equals(tmp)) _flushPolicy = FLUSH_BYTES;
+         else if("time".equalsIgnoreCase(tmp)   || "3".equals(tmp)) _flushPolicy = FLUSH_TIME;
+         try {_flushCount = Integer.parseInt(props.getProperty("Log.flushCount", ""+_flushCount));} catch(Exception e){}
+         _flushBytes = parseSize(props.getProperty("Log.flushBytes"), _flushBytes);
+         try {_flushMillis = Integer.parseInt(props.getProperty("Log.flushMillis", ""+_flushMillis));} catch(Exception e){}
+         tmp = props.getProperty("Log.fsync", ""+_fsync);
+         if     ("never".equalsIgnoreCase(tmp)  || "0".equals(tmp)) _fsync = FSYNC_NEVER;
+         else if("flush".equalsIgnoreCase(tmp)  || "1".equals(tmp)) _fsync = FSYNC_FLUSH;
+         else if("error".equalsIgnoreCase(tmp)  || "2".equals(tmp)) _fsync = FSYNC_ERROR;
+         _fileBufferSize = (int)Math.min(64*1024*1024, Math.max(4096, parseSize(props.getProperty("Log.fileBufferSize"), _fileBufferSize)));
+         //--async mode: async, asyncBufferSize, asyncFullPolicy, asyncDropLevel
+         _async = "true".equals(props.getProperty("Log.async", ""+_async)) ?true:false;
+         try {_asyncBufferSize = Integer.parseInt(props.getProperty("Log.asyncBufferSize", ""+_asyncBufferSize));} catch(Exception e){}
+         _asyncFullPolicy = parseFullPolicy(props.getProperty("Log.asyncFullPolicy"), _asyncFullPolicy);
+         _asyncDropLevel = parseLevel(props.getProperty("Log.asyncDropLevel", ""+_asyncDropLevel), _asyncDropLevel);
+         //--appender queues: appenderAsync, appenderQueueSize, appenderFullPolicy, appenderDropLevel (also per appender with @appenderClass)
+         _appenderAsync = "true".equals(props.getProperty("Log.appenderAsync", ""+_appenderAsync)) ?true:false;
+         try {_appenderQueueSize = Integer.parseInt(props.getProperty("Log.appenderQueueSize", ""+_appenderQueueSize));} catch(Exception e){}
+         _appenderFullPolicy = parseFullPolicy(props.getProperty("Log.appenderFullPolicy"), _appenderFullPolicy);
+         _appenderDropLevel = parseLevel(props.getProperty("Log.appenderDropLevel", ""+_appenderDropLevel), _appenderDropLevel);
+         //--B. read instance config params: level, classShortName, classNamesNum, appender - into trie by package segments
+         ConfigNode root = new ConfigNode("");
+         HashMap<String,String> appOpts = new HashMap<String,String>();
+         HashMap<String,Integer> overrides = new HashMap<String,Integer>();
+         boolean dedupUsed = _dedupLimit > 0;
+         for(String entry : props.stringPropertyNames()){
+            int at = entry.indexOf('@');
+            if(!entry.startsWith("Log.") || at < 0)
+               continue;
+            String option = entry.substring("Log.".length(), at);
+            if("level".equals(option) || "classShortName".equals(option) || "classNamesNum".equals(option) || "appender".equals(option)
+                  || "dedupLimit".equals(option) || "file".equals(option) || "fileFrequency".equals(option) || "fileMaxSize".equals(option)) {
+               root.add(entry.substring(at+1), option, props.getProperty(entry));
+               if("dedupLimit".equals(option) && !"0".equals(props.getProperty(entry).trim()))
+                  dedupUsed = true;
+            }
+            else if(option.startsWith("appender")) //appenderAsync@, appenderQueueSize@, ...
+               appOpts.put(entry, props.getProperty(entry).trim());
+            else if("levelOverride".equals(option)) { //levelOverride@user.lana=debug
+               String key = entry.substring(at+1);
+               int dot = key.indexOf('.');
+               int slot = dot < 0 ? -1 : Arrays.asList(CTX_NAMES).indexOf(key.substring(0, dot));
+               int lev = parseLevel(props.getProperty(entry).trim(), -1);
+               if(slot >= 0 && lev >= 0)
+                  overrides.put(CTX_NAMES[slot]+"="+key.substring(dot+1), lev);
+               else
+                  System.out.println("Log.loadConfig(): ignored "+entry+", expected Log.levelOverride@{req|session|user|usecase}.value=level");
             }
          }
+         setLevelOverrides(overrides);
+         _appenderOptions = appOpts;
+         _configRoot = root;
+         for(FileSink sink : _routedSinks.values()) //routes may have changed, next message reopens the file it goes to
+            sink.close();
+         _routedSinks.clear();
+         _dedupUsed = dedupUsed;
+         for(Map.Entry<String,Log> entry : logMap.entrySet()) //correct whatever log configs we had in the map before, so static loggers (static Log log = Log.getLog(..)) would work OK
+            config(entry.getValue(), entry.getKey()); //actually this functionality is quite useful to reconfigure all loggers on the fly
+         retireAsyncAppenders();
+         if(_consoleSink != null && (!_consoleAsync || _consoleSink.capacity != _consoleBufferSize))
+            stopConsole(); //next line starts thread with new buffer or is written by caller
+         if(_async) startAsync(); else stopAsync();
+         scheduleTraceReport();
+         scheduleDedupSweep();
+         scheduleFlush();
+         registerMBean();
+         _stackCache = new StackText[_stackCache.length]; //stackDeepness may have changed
          System.out.println("Log.loadConfig() succesfully loaded configuration from file "+propFilePath);
      } catch (Exception e) {
          if(!"izFrame.config".equals(propFileNm)) e.printStackTrace(); //don't print err stack for deafult config file
@@ -401,146 +763,479 @@ public class Log {
       }
    }
 
-   /** configures (level, classNamesNum, loggedClassName) specialized Log class instance, uses findBestMatch() which in turn uses logConfigMap */
+   /** configures (level, classNamesNum, loggedClassName, appenders) specialized Log class instance, uses findBestMatch() which in
+   turn uses config trie. New settings replace old ones in one step. Caller holds Log class lock. */
    private static void config(Log log, String cls){
-      String tmp = findBestMatch("level", cls, ""+_level);
-      if     ("debug".equalsIgnoreCase(tmp) || "5".equalsIgnoreCase(tmp)) log.level = DEBUG;
-      else if("trace".equalsIgnoreCase(tmp) || "4".equalsIgnoreCase(tmp)) log.level = TRACE;
-      else if("info".equalsIgnoreCase(tmp)  || "3".equalsIgnoreCase(tmp)) log.level = INFO;
-      else if("warning".equalsIgnoreCase(tmp)||"2".equalsIgnoreCase(tmp)) log.level = WARNING;
-      else if("error".equalsIgnoreCase(tmp) || "1".equalsIgnoreCase(tmp)) log.level = ERROR;
-      else if("off".equalsIgnoreCase(tmp)   || "0".equalsIgnoreCase(tmp)) log.level = OFF;
-      log.loggedClassName = findBestMatch("classShortName", cls, cls);
-      tmp = findBestMatch("classNamesNum", cls, ""+_classNamesNum);
-      try {log.classNamesNum = Integer.parseInt(tmp);} catch(Exception e){}
-      if(log.classNamesNum > -1) {//more adjustments to loggedClassName: com.ibm.foo.alex ->3-> com..foo.alex
-         String[] lst = log.loggedClassName.split("\\."); //com ibm foo alex
-         if(lst.length >= log.classNamesNum){
+      Settings old = log.settings;
+      int level = parseLevel(findBestMatch("level", cls, ""+_level), old == null ? log.level : old.level);
+      String loggedClassName = findBestMatch("classShortName", cls, cls);
+      int classNamesNum = old == null ? -1 : old.classNamesNum;
+      String tmp = findBestMatch("classNamesNum", cls, ""+_classNamesNum);
+      try {classNamesNum = Integer.parseInt(tmp);} catch(Exception e){}
+      if(classNamesNum > -1) {//more adjustments to loggedClassName: com.ibm.foo.alex ->3-> com..foo.alex
+         String[] lst = loggedClassName.split("\\."); //com ibm foo alex
+         if(lst.length >= classNamesNum){
             StringBuffer buf = new StringBuffer();
             for(int i=0; i<lst.length; i++){
                if(i==0) {
-                  if(log.classNamesNum > 0) buf.append(lst[0]); //put first entry: com
-                  int dotLen = (lst.length-log.classNamesNum > 16) ? 21: lst.length - log.classNamesNum; //lets be reasonable
+                  if(classNamesNum > 0) buf.append(lst[0]); //put first entry: com
+                  int dotLen = (lst.length-classNamesNum > 16) ? 21: lst.length - classNamesNum; //lets be reasonable
                   buf.append("................more..".substring(0, dotLen)); //4-3=1->com.
-                  i = lst.length - log.classNamesNum; // i=0 ->i=1, after ++ becomes 2, i.e 'foo'
+                  i = lst.length - classNamesNum; // i=0 ->i=1, after ++ becomes 2, i.e 'foo'
                } else
                   buf.append(".").append(lst[i]); //put next entry: -> com..foo
             }
-            log.loggedClassName = buf.toString();
+            loggedClassName = buf.toString();
          }
       }
-      log.appenderName = findBestMatch("appender", cls, null);
+      String appenderName = findBestMatch("appender", cls, null);
+      int dedupLimit = _dedupLimit;
+      try {dedupLimit = Integer.parseInt(findBestMatch("dedupLimit", cls, ""+_dedupLimit));} catch(Exception e){}
+      String fileNm = findBestMatch("file", cls, null);
+      if(fileNm != null && (fileNm.trim().length() == 0 || fileNm.trim().equals(_logFileNm)))
+         fileNm = null;
+      int fileFrequency = parseFrequency(findBestMatch("fileFrequency", cls, null), _frequency);
+      long fileMaxSize = parseSize(findBestMatch("fileMaxSize", cls, null), _maxFileSize);
+      log.settings = new Settings(level, loggedClassName, classNamesNum, appenderName, resolveAppenders(appenderName), dedupLimit,
+            fileNm == null ? null : fileNm.trim(), fileFrequency, fileMaxSize);
+      log.level = level;
+      log.threshold = Math.max(level, _recording); //events below level but within recorder level go to recorder
+   }
+   /** returns appenders listed in semicolon separated names, loading and instantiating ones not loaded yet. Appenders that
+   can't be loaded are reported and skipped. Returns null if there are no appenders. Caller holds Log class lock. */
+   private static Appender[] resolveAppenders(String names) {
+      if(names == null)
+         return null;
+      ArrayList<Appender> lst = new ArrayList<Appender>();
+      for(String apprNm: names.split(";")){ //support multiple appenders, semicolon separated
+         apprNm = apprNm.trim();
+         if(apprNm.length() == 0)
+            continue;
+         Appender appender = _loadedAppenderClasses.get(apprNm);
+         try {
+            if(appender == null) { //first use of this appender - load it and create instance
+               Object appenderObj = Class.forName(apprNm).newInstance(); //ClassNotFoundException, InstantiationException, IllegalAccessException
+               appender = (appenderObj instanceof Appender) ? (Appender)appenderObj : new LegacyAppender(appenderObj);
+               _loadedAppenderClasses.put(apprNm, appender);
+               addShutdownHook(); //flushes appender at exit
+            }
+            String opt = _appenderOptions.get("Log.appenderAsync@"+apprNm);
+            if(opt == null ? _appenderAsync : "true".equals(opt))
+               appender = asyncAppender(apprNm, appender);
+            lst.add(appender);
+         }
+         catch (Throwable t) {  t.printStackTrace();      }
+      }
+      return lst.isEmpty() ? null : lst.toArray(new Appender[lst.size()]);
+   }
+   /** returns queue of async appender, creates new one if there is none or its options were changed. Caller holds Log class lock */
+   private static AsyncAppender asyncAppender(String apprNm, Appender appender) {
+      int size = _appenderQueueSize;
+      try {size = Integer.parseInt(_appenderOptions.get("Log.appenderQueueSize@"+apprNm));} catch(Exception e){}
+      int fullPolicy = parseFullPolicy(_appenderOptions.get("Log.appenderFullPolicy@"+apprNm), _appenderFullPolicy);
+      int dropLevel = parseLevel(_appenderOptions.get("Log.appenderDropLevel@"+apprNm), _appenderDropLevel);
+      AsyncAppender res = _asyncAppenders.get(apprNm);
+      if(res != null && !res.stopping && res.size == size && res.fullPolicy == fullPolicy && res.dropLevel == dropLevel)
+         return res;
+      if(res != null)
+         res.stopQueue(); //finishes queued events and exits, loggers get new queue
+      res = new AsyncAppender(apprNm, appender, size, fullPolicy, dropLevel);
+      res.start();
+      _asyncAppenders.put(apprNm, res);
+      addShutdownHook();
+      return res;
+   }
+   /** stops queues of async appenders no logger uses anymore (after config reload). Caller holds Log class lock */
+   private static void retireAsyncAppenders() {
+      HashSet<Appender> used = new HashSet<Appender>();
+      for(Log log : logMap.values())
+         if(log.settings.appenders != null)
+            used.addAll(Arrays.asList(log.settings.appenders));
+      for(Iterator<AsyncAppender> it = _asyncAppenders.values().iterator(); it.hasNext(); ) {
+         AsyncAppender appender = it.next();
+         if(!used.contains(appender)) {
+            appender.stopQueue();
+            it.remove();
+         }
+      }
+   }
+   /** returns appender with the given name (as it is set in Log.appender@ option) or null if it was not loaded. For async appender
+   returns its AsyncAppender queue, which provides queued, dropped and failed event counters */
+   public static synchronized Appender getAppender(String name) {
+      Appender res = _asyncAppenders.get(name);
+      return res != null ? res : _loadedAppenderClasses.get(name);
+   }
+
+   /** converts level name (debug, trace, info, warning, error, off) or its number to level constant, returns defaultVal if unknown */
+   protected static int parseLevel(String val, int defaultVal) {
+      if     ("debug".equalsIgnoreCase(val) || "5".equalsIgnoreCase(val)) return DEBUG;
+      else if("trace".equalsIgnoreCase(val) || "4".equalsIgnoreCase(val)) return TRACE;
+      else if("info".equalsIgnoreCase(val)  || "3".equalsIgnoreCase(val)) return INFO;
+      else if("warning".equalsIgnoreCase(val)||"2".equalsIgnoreCase(val)) return WARNING;
+      else if("error".equalsIgnoreCase(val) || "1".equalsIgnoreCase(val)) return ERROR;
+      else if("off".equalsIgnoreCase(val)   || "0".equalsIgnoreCase(val)) return OFF;
+      return defaultVal;
+   }
+   /** converts rotation frequency name (HOURLY, DAILY, DAY10, MONTHLY, YEARLY) or its number to constant, returns defaultVal if unknown */
+   protected static int parseFrequency(String val, int defaultVal) {
+      if     ("HOURLY".equalsIgnoreCase(val) ||"11".equalsIgnoreCase(val)) return HOURLY;
+      else if("DAILY".equalsIgnoreCase(val)  || "8".equalsIgnoreCase(val)) return DAILY;
+      else if("DAY10".equalsIgnoreCase(val)  || "7".equalsIgnoreCase(val)) return DAY10;
+      else if("MONTHLY".equalsIgnoreCase(val)|| "5".equalsIgnoreCase(val)) return MONTHLY;
+      else if("YEARLY".equalsIgnoreCase(val) || "2".equalsIgnoreCase(val)) return YEARLY;
+      return defaultVal;
+   }
+   /** converts full buffer policy name (block, drop, dropBelow) or its number to FULL_ constant, returns defaultVal if unknown */
+   protected static int parseFullPolicy(String val, int defaultVal) {
+      if     ("block".equalsIgnoreCase(val)     || "0".equalsIgnoreCase(val)) return FULL_BLOCK;
+      else if("drop".equalsIgnoreCase(val)      || "1".equalsIgnoreCase(val)) return FULL_DROP;
+      else if("dropBelow".equalsIgnoreCase(val) || "2".equalsIgnoreCase(val)) return FULL_DROP_BELOW;
+      return defaultVal;
+   }
+   /** converts message level char (E, W, I, T, D) to level constant, ' ' (trace results) is treated as TRACE */
+   static int levelOf(char level) {
+      switch(level) {
+         case 'E': return ERROR;
+         case 'W': return WARNING;
+         case 'I': return INFO;
+         case 'D': return DEBUG;
+         default : return TRACE;
+      }
    }
 
-   /** finds best match config value of entryNm in properties. Best match is the longest that is found in 'start' of classNm. */
+   /** finds best match config value of entryNm in properties. Best match is the longest that is found in 'start' of classNm,
+   matched by whole dot separated segments: Log.level@com.ibm applies to com.ibm.Foo, but not to com.ibmx.Foo. Walks config
+   trie one segment of classNm at a time, so cost depends on classNm length only, not on number of config entries. */
    protected static String findBestMatch(String entryNm, String classNm, String defaultVal) {
-      if(logConfigMap == null) //means no config file load
+      ConfigNode node = _configRoot;
+      if(node == null) //means no config file load
          return defaultVal;
       String ret = defaultVal;
-      ArrayList<String> confKeyArr = logConfigMap.get(entryNm); //level, loggedClassName, classNamesNum
-      for(int i=confKeyArr.size()-1; i>=0; i--){
-         if(classNm.startsWith(confKeyArr.get(i))){ //that should be the largest matching entry found in config
-            ret = logConfigMap.get(entryNm+"V").get(i);
-            if("classShortName".equals(entryNm)) { //special: cls can be descendant, need loggedClassName adjustments
-               ret = classNm.replaceFirst(confKeyArr.get(i), ret);
-            }
-            break;
-         }
+      ConfigNode found = null;
+      for(int from = 0; node != null && from <= classNm.length(); ){
+         int to = classNm.indexOf('.', from);
+         if(to < 0) to = classNm.length();
+         node = node.children == null ? null : node.children.get(classNm.substring(from, to));
+         if(node != null && node.values.containsKey(entryNm))
+            found = node; //deeper match is better one
+         from = to + 1;
+      }
+      if(found != null){
+         ret = found.values.get(entryNm);
+         if("classShortName".equals(entryNm)) //special: cls can be descendant, need loggedClassName adjustments
+            ret = ret + classNm.substring(found.key.length());
       }
       return ret;
    }
+   /** node of config trie: one package segment of 'per class' config option key, like "ibm" of Log.level@com.ibm.lana. Built
+   by loadConfig() and not changed after it is published, so it is read without locks */
+   static final class ConfigNode {
+      /** full key up to this node, like "com.ibm" */
+      final String key;
+      /** option values set for this key: level, classShortName, classNamesNum, appender */
+      final HashMap<String,String> values = new HashMap<String,String>(4);
+      HashMap<String,ConfigNode> children;
+      ConfigNode(String key) {
+         this.key = key;
+      }
+      /** sets option value for key, creating nodes of its segments */
+      void add(String key, String option, String value) {
+         ConfigNode node = this;
+         for(String segment : key.split("\\.", -1)) {
+            if(node.children == null)
+               node.children = new HashMap<String,ConfigNode>();
+            ConfigNode child = node.children.get(segment);
+            if(child == null)
+               node.children.put(segment, child = new ConfigNode(node == this ? segment : node.key+"."+segment));
+            node = child;
+         }
+         node.values.put(option, value);
+      }
+   }
 
    //#########------ LOGGING FUNCTIONS --------#########
    //-------- Standard logging -------------------
    //--error--
    /** logs error, i.e. something like serious business logic, data or software related problem. Active when global log level is ERROR */
    public static void err(String msg){
-      if(_level >= ERROR) logMessage('E', msg, null);
+      if(_level >= ERROR || _overrides && overrideLevel() >= ERROR) logMessage('E', msg, null);
    }
    /** logs error if Exception was thrown, mostly for system errors or severe business errors. */
    public static void err(Exception e, String msg){//
-      if(_level >= ERROR) logMessage('E', msg, e);
+      if(_level >= ERROR || _overrides && overrideLevel() >= ERROR) logMessage('E', msg, e);
    }
    /** instance method for error logging, active when 'class type specific' log level is ERROR or above */
    public void error(String msg){
-      if(level >= ERROR) processAppenders('E', msg, null);
+      if(threshold >= ERROR || _overrides && overrideLevel() >= ERROR) processAppenders('E', msg, null);
    }
    /** instance method used for error logging when Exception was thrown, active when 'class type specific' log level is ERROR or above */
    public void error(Exception e, String msg){
-      if(level >= ERROR) processAppenders('E', msg, e);
+      if(threshold >= ERROR || _overrides && overrideLevel() >= ERROR) processAppenders('E', msg, e);
    }
 
    //--warning--
    /** logs warning, i.e. something like business logic related problem */
    public static void warn(String msg){
-      if(_level >= WARNING) logMessage('W', msg, null);
+      if(_level >= WARNING || _overrides && overrideLevel() >= WARNING) logMessage('W', msg, null);
    }
    /** logs warning when Exception was thrown (used mostly for recoverable system warnings). */
    public static void warn(Exception e, String msg){//
-      if(_level >= WARNING) logMessage('W', msg, e);
+      if(_level >= WARNING || _overrides && overrideLevel() >= WARNING) logMessage('W', msg, e);
    }
    /** instance method for warnings logging, active when 'class type specific' log level is WARNING or above */
    public void warning(String msg){
-      if(level >= WARNING) processAppenders('W', msg, null);
+      if(threshold >= WARNING || _overrides && overrideLevel() >= WARNING) processAppenders('W', msg, null);
    }
    /** instance method for warnings logging when Exception was thrown */
    public void warning(Exception e, String msg){
-      if(level >= WARNING) processAppenders('W', msg, e);
+      if(threshold >= WARNING || _overrides && overrideLevel() >= WARNING) processAppenders('W', msg, e);
    }
 
    //--info, debug--
    /**logs other information of possible interest, active when global log level is INFO or above */
    public static void info(String msg){
-      if(_level >= INFO) logMessage('I', msg, null);
+      if(_level >= INFO || _recording >= INFO || _overrides && overrideLevel() >= INFO) logMessage('I', msg, null);
    }
    /** instance method for other information logging, active when 'class type specific' log level is INFO or above*/
    public void inform(String msg){
-      if(level >= INFO) processAppenders('I', msg, null);
+      if(threshold >= INFO || _overrides && overrideLevel() >= INFO) processAppenders('I', msg, null);
    }
    /** logs message about details of program execution, active when global log level is DEBUG */
    public static void dbg(String msg){
-      if(_level >= DEBUG) logMessage('D', msg, null);
+      if(_level >= DEBUG || _recording >= DEBUG || _overrides && overrideLevel() >= DEBUG) logMessage('D', msg, null);
    }
    /** instance method for logging message about details of program execution, active when 'class type specific' log level is DEBUG */
    public void debug(String msg){
-      if(level >= DEBUG) processAppenders('D', msg, null);
+      if(threshold >= DEBUG || _overrides && overrideLevel() >= DEBUG) processAppenders('D', msg, null);
+   }
+
+   //-------- Parameterized and lazily formatted logging -------------------
+   //message text is built only after level check has passed: template's {} are replaced by arguments (String.valueOf(arg))
+   //or Supplier is called. In async mode this is done by the writer thread, so arguments should not be changed after call.
+   //Example: log.debug("execRowChange() sql=\n{}", sql); log.debug(() -> dumpState());
+   /** error logging with {} template and one argument */
+   public void error(String template, Object arg){
+      if(threshold >= ERROR || _overrides && overrideLevel() >= ERROR) dispatch(this, 'E', template, arg, null, null, 1, null, null);
+   }
+   /** error logging with {} template and two arguments */
+   public void error(String template, Object arg0, Object arg1){
+      if(threshold >= ERROR || _overrides && overrideLevel() >= ERROR) dispatch(this, 'E', template, arg0, arg1, null, 2, null, null);
+   }
+   /** error logging with {} template and any number of arguments */
+   public void error(String template, Object... args){
+      if(threshold >= ERROR || _overrides && overrideLevel() >= ERROR) dispatch(this, 'E', template, null, null, args, args == null ? 0 : args.length, null, null);
+   }
+   /** error logging with {} template when Exception was thrown */
+   public void error(Exception e, String template, Object... args){
+      if(threshold >= ERROR || _overrides && overrideLevel() >= ERROR) dispatch(this, 'E', template, null, null, args, args == null ? 0 : args.length, null, e);
+   }
+   /** error logging, message is produced by Supplier only if level is enabled */
+   public void error(Supplier<String> msg){
+      if(threshold >= ERROR || _overrides && overrideLevel() >= ERROR) dispatch(this, 'E', null, null, null, null, -1, msg, null);
+   }
+   /** error logging when Exception was thrown, message is produced by Supplier only if level is enabled */
+   public void error(Exception e, Supplier<String> msg){
+      if(threshold >= ERROR || _overrides && overrideLevel() >= ERROR) dispatch(this, 'E', null, null, null, null, -1, msg, e);
+   }
+   /** warning logging with {} template and one argument */
+   public void warning(String template, Object arg){
+      if(threshold >= WARNING || _overrides && overrideLevel() >= WARNING) dispatch(this, 'W', template, arg, null, null, 1, null, null);
+   }
+   /** warning logging with {} template and two arguments */
+   public void warning(String template, Object arg0, Object arg1){
+      if(threshold >= WARNING || _overrides && overrideLevel() >= WARNING) dispatch(this, 'W', template, arg0, arg1, null, 2, null, null);
+   }
+   /** warning logging with {} template and any number of arguments */
+   public void warning(String template, Object... args){
+      if(threshold >= WARNING || _overrides && overrideLevel() >= WARNING) dispatch(this, 'W', template, null, null, args, args == null ? 0 : args.length, null, null);
+   }
+   /** warning logging with {} template when Exception was thrown */
+   public void warning(Exception e, String template, Object... args){
+      if(threshold >= WARNING || _overrides && overrideLevel() >= WARNING) dispatch(this, 'W', template, null, null, args, args == null ? 0 : args.length, null, e);
+   }
+   /** warning logging, message is produced by Supplier only if level is enabled */
+   public void warning(Supplier<String> msg){
+      if(threshold >= WARNING || _overrides && overrideLevel() >= WARNING) dispatch(this, 'W', null, null, null, null, -1, msg, null);
+   }
+   /** information logging with {} template and one argument */
+   public void inform(String template, Object arg){
+      if(threshold >= INFO || _overrides && overrideLevel() >= INFO) dispatch(this, 'I', template, arg, null, null, 1, null, null);
+   }
+   /** information logging with {} template and two arguments */
+   public void inform(String template, Object arg0, Object arg1){
+      if(threshold >= INFO || _overrides && overrideLevel() >= INFO) dispatch(this, 'I', template, arg0, arg1, null, 2, null, null);
+   }
+   /** information logging with {} template and any number of arguments */
+   public void inform(String template, Object... args){
+      if(threshold >= INFO || _overrides && overrideLevel() >= INFO) dispatch(this, 'I', template, null, null, args, args == null ? 0 : args.length, null, null);
+   }
+   /** information logging, message is produced by Supplier only if level is enabled */
+   public void inform(Supplier<String> msg){
+      if(threshold >= INFO || _overrides && overrideLevel() >= INFO) dispatch(this, 'I', null, null, null, null, -1, msg, null);
+   }
+   /** debug logging with {} template and one argument */
+   public void debug(String template, Object arg){
+      if(threshold >= DEBUG || _overrides && overrideLevel() >= DEBUG) dispatch(this, 'D', template, arg, null, null, 1, null, null);
+   }
+   /** debug logging with {} template and two arguments */
+   public void debug(String template, Object arg0, Object arg1){
+      if(threshold >= DEBUG || _overrides && overrideLevel() >= DEBUG) dispatch(this, 'D', template, arg0, arg1, null, 2, null, null);
+   }
+   /** debug logging with {} template and any number of arguments */
+   public void debug(String template, Object... args){
+      if(threshold >= DEBUG || _overrides && overrideLevel() >= DEBUG) dispatch(this, 'D', template, null, null, args, args == null ? 0 : args.length, null, null);
+   }
+   /** debug logging, message is produced by Supplier only if level is enabled */
+   public void debug(Supplier<String> msg){
+      if(threshold >= DEBUG || _overrides && overrideLevel() >= DEBUG) dispatch(this, 'D', null, null, null, null, -1, msg, null);
    }
 
    /** calls appender's logMessage() method. If it returns false, next appender's logMessage() or Log.logMessage() is called.
-   Appender is supposed to implement "boolean logMessage(char level, String loggedClassName, String msg, Exception e)". Appenders
+   Appender is supposed to implement Log.Appender (or just have "boolean logMessage(char level, String loggedClassName, String msg,
+   Exception e)" method). Appenders
    are supposed to be initialed in a way specific to them, Log does not care which one. For example, write() method may check for
-   'configDone' flag and if is false, read config file. */
+   'configDone' flag and if is false, read config file. In async mode appenders are called by the background writer thread. */
    public void processAppenders(char level, String msg, Exception e){
-      if(appenderName != null) {
-         String[] appendersArr = appenderName.split(";"); //support multiple appenders, semicolon separated
-         for(String apprNm: appendersArr){
-            Object appenderObj = _loadedAppenderClasses.get(apprNm);
+      dispatch(this, level, msg, null, null, null, -1, null, e);
+   }
+   /** calls appenders resolved from appenderName, returns true if one of them consumed the message (its logMessage() returned true) */
+   private boolean runAppenders(char level, String msg, Exception e){
+      Settings s = settings;
+      if(s.appenders != null) {
+         for(Appender appender: s.appenders){
             try {
-               if(appenderObj == null) { //it may be first call to this appender - load it and create instance
-                     Class appenderClass = Class.forName(apprNm); //load appender class - ClassNotFoundException, NoClassDefFoundError
-                     appenderObj = appenderClass.newInstance(); //throws InstantiationException, IllegalAccessException
-                     _loadedAppenderClasses.put(apprNm, appenderObj);
-               }
-               if(appenderObj != null) {
-                  java.lang.reflect.Method m = appenderObj.getClass().getMethod("logMessage", char.class, String.class, String.class, Exception.class);
-                  Object res = m.invoke(appenderObj, level, loggedClassName, msg, e );
-                  if(res instanceof Boolean && (Boolean)res == Boolean.TRUE) //if appender.write() returns false stop processing
-                     return;
-               }
+               if(appender.logMessage(level, s.loggedClassName, msg, e)) //if appender returns false continue processing
+                  return true;
+            }
+            catch (Throwable t) {
+               _appenderFailures.incrementAndGet();
+               t.printStackTrace();
             }
-            catch (Throwable t) {  t.printStackTrace();      }
          }
       }
-      logMessage(level, loggedClassName+": "+msg, e);
+      return false;
    }
 
-   /** displays msgCore or writes it to the log file, also provides file rotation if necessary. */
-   protected static synchronized void logMessage(char level, String msgCore, Exception e) {
-      String tmp = _df.format(new java.util.Date());
-      if(tmp.length() > 20) tmp = tmp.substring(0,20);
-      String msg = level==' '? msgCore : tmp+" "+level+" "+msgCore;
-      if(_logToConsole) {
-         System.out.println(msg);
+   /** interface of appenders, i.e. destinations of instance logger messages other than console and file. Appenders are set by
+   'Log.appender@' configuration option and are created with default constructor, one instance per class. */
+   public interface Appender {
+      /** processes message, returns true if message is consumed, i.e. should not be passed to next appenders, console and file */
+      boolean logMessage(char level, String loggedClassName, String msg, Exception e);
+      /** sends out messages appender keeps buffered, called by shutdown hook. Default does nothing */
+      default void flush() {}
+   }
+   /** adapts appender that does not implement Appender but has public "logMessage(char, String, String, Exception)" method.
+   Method is bound once through MethodHandles, so call costs about the same as direct call, not reflection lookup and invoke */
+   private static final class LegacyAppender implements Appender {
+      private final java.lang.invoke.MethodHandle handle;
+      LegacyAppender(Object appender) throws ReflectiveOperationException {
+         java.lang.reflect.Method m = appender.getClass().getMethod("logMessage", char.class, String.class, String.class, Exception.class);
+         java.lang.invoke.MethodHandle mh;
+         try {
+            mh = java.lang.invoke.MethodHandles.publicLookup().unreflect(m);
+         }
+         catch (IllegalAccessException ex) { //method is public but class is not
+            m.setAccessible(true);
+            mh = java.lang.invoke.MethodHandles.lookup().unreflect(m);
+         }
+         handle = mh.bindTo(appender).asType(java.lang.invoke.MethodType.methodType(Object.class, char.class, String.class, String.class, Exception.class));
+      }
+      public boolean logMessage(char level, String loggedClassName, String msg, Exception e) {
+         Object res;
+         try {
+            res = (Object)handle.invokeExact(level, loggedClassName, msg, e);
+         }
+         catch (RuntimeException ex) { throw ex; }
+         catch (Error ex) { throw ex; }
+         catch (Throwable t) { throw new RuntimeException(t); }
+         return res instanceof Boolean && (Boolean)res == Boolean.TRUE;
+      }
+   }
+
+   /** displays msgCore or writes it to the log file, also provides file rotation if necessary. In async mode message is
+   handed over to the background writer thread. */
+   protected static void logMessage(char level, String msgCore, Exception e) {
+      dispatch(null, level, msgCore, null, null, null, -1, null, e);
+   }
+   /** sends message to the async writer if one is running, otherwise runs appenders (for instance calls, log!=null) and
+   writes message in the caller thread. For static calls log is null. If argc is -1, msg is either plain text or null
+   when sup provides text, otherwise msg is template with argc arguments (a0, a1 or args) - see Event. */
+   private static void dispatch(Log log, char level, String msg, Object a0, Object a1, Object[] args, int argc, Supplier<?> sup, Exception e) {
+      if(_recording > OFF && level != ' ') { //trace results of sampled trace are written whatever log level is
+         int lev = levelOf(level);
+         int enabled = log == null ? _level : log.settings.level;
+         if(_overrides)
+            enabled = Math.max(enabled, overrideLevel());
+         if(lev > enabled) { //passed level check for recorder only
+            if(lev <= _recording)
+               record(log, level, msg, a0, a1, args, argc, sup, e);
+            return;
+         }
+         if(level == 'E')
+            dumpRecorder(); //show what led to the error first
+      }
+      if(_dedupUsed && level != ' ' && levelOf(level) <= _dedupLevel) {
+         int limit = log == null ? _dedupLimit : log.settings.dedupLimit;
+         if(limit > 0 && !dedupAllows(log, level, msg, sup, e, limit))
+            return;
+      }
+      deliver(log, level, msg, a0, a1, args, argc, sup, e);
+   }
+   /** dispatch() without duplicates check */
+   private static void deliver(Log log, char level, String msg, Object a0, Object a1, Object[] args, int argc, Supplier<?> sup, Exception e) {
+      AsyncWriter writer = _asyncWriter;
+      if(writer != null && writer.offer(log, level, msg, a0, a1, args, argc, sup, e))
+         return;
+      if(log != null && log.settings.appenders != null) { //appenders need text, build it once
+         if(argc >= 0 || sup != null) {
+            msg = Event.format(msg, a0, a1, args, argc, sup);
+            argc = -1;
+            sup = null;
+         }
+         if(log.runAppenders(level, msg, e))
+            return;
+      }
+      synchronized(Log.class) {
+         _syncEvent.set(log, level, msg, a0, a1, args, argc, sup, e, System.currentTimeMillis());
+         writeEvent(_syncEvent);
+         endBatch();
+         _syncEvent.clear();
+      }
+      awaitConsole();
+   }
+
+   /** writes event to console and/or file, also provides file rotation if necessary. Caller holds Log class lock.
+   Line is assembled in reusable _line buffer: timestamp prefix comes from _stamp cache, rotation is checked against
+   precomputed FileSink.nextRotationAt, so writing line to file does not create Date, String or char[] objects. */
+   private static void writeEvent(Event ev) {
+      char level = ev.level;
+      Exception e = ev.e;
+      int levelIdx = LEVEL_CHARS.indexOf(level);
+      _levelCounts.incrementAndGet(levelIdx < 0 ? LEVEL_CHARS.length() : levelIdx);
+      CharBuf line = _line;
+      line.len = 0;
+      boolean text = _logToConsole || (_logToFile && _format == FORMAT_TEXT); //binary file needs no text at all, json - only message
+      if(text) {
+         if(level != ' ')
+            _stamp.append(line, ev.time).append(' ').append(level).append(' ');
+         if(ev.log != null)
+            line.append(ev.log.settings.loggedClassName).append(": ");
+         ev.ctx.append(line);
+      }
+      int msgStart = line.len;
+      if(text || (_logToFile && _format == FORMAT_JSON))
+         ev.appendMsg(line);
+      int msgLen = line.len;
+      if(_logToConsole && _consoleAsync) {
+         if(_consoleSink == null)
+            startConsole();
+         String stack = null;
+         if(e != null)
+            try { stack = stackText(e); } catch(Exception stackEx) { stack = "\t"+e; } //pre 1.4 Java
+         _consoleSink.append(line.chars, msgLen, stack, level);
+      }
+      else if(_logToConsole) {
+         System.out.println(line.toString());
          if(e != null){
             //System.out.println("\t"+e.getClass().getName()+", msg: "+e.getMessage()); - unneeded as printStackTrace() does something similar
             Throwable cause = e;
@@ -553,137 +1248,1973 @@ public class Log {
          }
       }
       if(_logToFile) { //use file for output
+         Settings route = ev.log == null || ev.log.settings.fileNm == null ? null : ev.log.settings;
+         String fileNm = route == null ? _logFileNm : route.fileNm;
          try {
-            //1. Open existing or create new log file.
-            //expected msg starts with "yy-MM-dd HH:mm:ss.S", use for currentAt variable
-            String currentAt = msg.substring(0,_frequency);
-            if(_logFile==null){//initialize and read _startedAt
-               //System.out.println("1.currentAt="+currentAt+", _startedAt="+_startedAt);
-               _startedAt = "";
-               File fileTmp = new File(_logFileNm);
-               File logDir = new File(fileTmp.getParent());
-               if(!logDir.exists())
-                 logDir.mkdirs();
-               if(!fileTmp.exists()){
-                  _startedAt = currentAt;
-               }
-               //2. Read logging start date and time
-               else { //read _startedAt chars
-                  FileReader rdr = new FileReader(fileTmp);
-                  char[] cbuf = new char[_frequency];
-                  if(rdr.read(cbuf, 0, _frequency) != -1)
-                     _startedAt = new String(cbuf);
-                  else //i.e. end of file reached before we get needed chars
-                     _startedAt = currentAt;
-                  rdr.close();
-               }
-               _logFile = new PrintWriter(new FileWriter(_logFileNm, true), true);//append, flush
-               //System.out.println("2.currentAt="+currentAt+", _startedAt="+_startedAt);
-            }
-            //3. do log file rotation (if necessary)
-            if(msg!=null && msg.length()>_frequency && !msg.substring(0,_frequency).equals(_startedAt)) {
-               //System.out.println("3a.currentAt="+currentAt+", _startedAt="+_startedAt);
-               _logFile.close(); //rotating. needs to close and rename
-               _startedAt = _startedAt.replace('-', '_');//"yy-MM-dd HH"
-               _startedAt = _startedAt.replace(' ', '_');//"yy_MM_dd_HH"
-               File fileTmp = new File(_logFileNm);
-               fileTmp.renameTo(new File(_logFileNm+"."+_startedAt+".old"));
-               //System.out.println("3b.currentAt="+currentAt+", _startedAt="+_startedAt);
-               _startedAt = currentAt;
-               _logFile = new PrintWriter(new FileWriter(_logFileNm, true), true);//append, flush
-            }
-            //4. Finally - do the actual file writing
-            _logFile.println(msg);
-            if(e != null) {
-               if(_preJDK1_4)
-                  e.printStackTrace(_logFile);
-               else {
-                  try {
-                     StringBuffer b = new StringBuffer("\t").append(e.getClass().getName()).append(": ").append(e.getMessage());
-                     Throwable cause = e;
-                     while(cause != null){ //build exception stack: first entry, count of skipped, remainder as per stackDeepness
-                        StackTraceElement[] list = e.getStackTrace(); //since JDK 1.4
-                        for(int i=0; i<list.length; i++){                        //let be: list=4 (a.b.c.d), stackDeepness=3, expect a|cd
-                           if(i==0) {
-                              if(_stackDeepness > 0) b.append(cr).append("\t\t").append(list[i].toString()); //put first entry
-                              if(list.length>_stackDeepness && _stackDeepness>1){
-                                 b.append(cr).append("\t\t\t..."+(list.length-_stackDeepness)+" more ..." ); //put 'extra count' line: '1'
-                                 i = list.length-_stackDeepness; // i=0 ->i=1, after ++ becomes 2, i.e. points to 'c'
-                              }
-                           } else
-                              b.append(cr).append("\t\t").append(list[i].toString()); //put next entry: 'c' then 'd'
-                        }
-                        cause = cause.getCause();
-                        if(cause != null)
-                           b.append(cr).append("\t which in turn is caused by "+cause.getClass().getName()+": "+cause.getMessage());
+            //1. Open existing or create new log file, rotate it if time period ended or size limit reached
+            FileSink sink;
+            if(route == null) {
+               if(_fileSink == null)
+                  _fileSink = new FileSink(_logFileNm, _frequency, _maxFileSize);
+               sink = _fileSink;
+            }
+            else if((sink = _routedSinks.get(fileNm)) == null) { //first of the routes to the file sets its rotation
+               sink = new FileSink(fileNm, route.fileFrequency, route.fileMaxSize);
+               _routedSinks.put(fileNm, sink);
+            }
+            sink.prepare(ev.time);
+            sink.index(ev);
+            //2. Finally - do the actual file writing
+            if(sink.format == FORMAT_JSON)
+               sink.writeJson(ev, line.chars, msgStart, msgLen);
+            else if(sink.format == FORMAT_BINARY)
+               sink.writeBinary(ev);
+            else {
+               line.append(cr); //flushing is done in endBatch() or by timer
+               sink.write(line.chars, line.len);
+               if(e != null) {
+                  if(_preJDK1_4)
+                     sink.printStackTrace(e);
+                  else {
+                     try {
+                        String stack = stackText(e);
+                        sink.write(stack);
+                        sink.write(cr);
+                     }
+                     catch(Exception writeEx){//can be because of pre 1.4 Java
+                        sink.printStackTrace(e);
+                        _preJDK1_4 = true;
+                        System.out.println("mode was changed to '_preJDK1_4' because of the exception:");
+                        writeEx.printStackTrace();
+                        sink.write("mode was changed to '_preJDK1_4' because of the exception:"+cr);
+                        sink.printStackTrace(writeEx);
                      }
-                     _logFile.println(b.toString());
-                  }
-                  catch(Exception writeEx){//can be because of pre 1.4 Java
-                     e.printStackTrace(_logFile);
-                     _preJDK1_4 = true;
-                     System.out.println("mode was changed to '_preJDK1_4' because of the exception:");
-                     writeEx.printStackTrace();
-                     _logFile.println("mode was changed to '_preJDK1_4' because of the exception:");
-                     writeEx.printStackTrace(_logFile);
                   }
                }
             }
-            _logFile.flush();
-            if(_level < INFO) //closeFileOnExit
-               _logFile.close();
+            sink.unflushed++;
+            if(level == 'E' && _fsync == FSYNC_ERROR)
+               sink.forcePending = true;
           }
           catch(Exception se){
             if(se instanceof SecurityException)
-               System.out.println("\tCannot create directory or file "+_logFileNm+" "+se.getLocalizedMessage());
+               System.out.println("\tCannot create directory or file "+fileNm+" "+se.getLocalizedMessage());
             else if(se instanceof IOException)
-               System.out.println("\tCannot write to file "+_logFileNm+" "+se.getLocalizedMessage());
+               System.out.println("\tCannot write to file "+fileNm+" "+se.getLocalizedMessage());
             if(_logToFile && !_logToConsole) { //in this case msg was not displayed, do it now
-               System.out.println(msg);
+               System.out.println(text ? new String(line.chars, 0, msgLen) : Event.format(ev.msg, ev.a0, ev.a1, ev.args, ev.argc, ev.sup));
                if(e != null) e.printStackTrace();
             }
             _logToFile=false;
           }
       }
    }
+   //-------- Flight recorder -------------------
+   /** keeps event in the thread's recorder, overwriting the oldest one when it is full. Message text is not built here,
+   template arguments and Supplier are used when recorder is dumped */
+   private static void record(Log log, char level, String msg, Object a0, Object a1, Object[] args, int argc, Supplier<?> sup, Exception e) {
+      Recorder rec = _recorder.get();
+      if(rec == null || rec.events.length != _recorderSize)
+         _recorder.set(rec = new Recorder(_recorderSize));
+      Event ev = rec.events[rec.next];
+      ev.set(log, level, msg, a0, a1, args, argc, sup, e, System.currentTimeMillis());
+      rec.next = (rec.next + 1) % rec.events.length;
+      if(rec.count < rec.events.length) rec.count++;
+   }
+   /** writes events kept by the calling thread's recorder to the log as one block and clears the recorder. Called when thread
+   logs ERROR, can be called by application at any time */
+   public static void dumpRecorder() {
+      Recorder rec = _recorder.get();
+      if(rec == null || rec.count == 0)
+         return;
+      CharBuf buf = new CharBuf(rec.count * 100);
+      buf.append("--- flight recorder: last ").appendNum(rec.count).append(" events of thread ").append(Thread.currentThread().getName()).append(" ---").append(cr);
+      Event[] events = rec.events;
+      for(int i = 0, idx = (rec.next - rec.count + events.length) % events.length; i < rec.count; i++, idx = (idx + 1) % events.length) {
+         Event ev = events[idx];
+         rec.stamp.append(buf, ev.time).append(' ').append(ev.level).append(' ');
+         if(ev.log != null)
+            buf.append(ev.log.settings.loggedClassName).append(": ");
+         ev.ctx.append(buf);
+         ev.appendMsg(buf);
+         buf.append(cr);
+         if(ev.e != null)
+            buf.append(buildStackText(ev.e)).append(cr); //no stack cache: it is guarded by Log lock
+         ev.clear();
+      }
+      buf.append("--- end of flight recorder ---");
+      rec.count = 0;
+      deliver(null, ' ', buf.toString(), null, null, null, -1, null, null);
+   }
+   /** sets id (request id, session id, ...) events of the calling thread are indexed under in sidecar index of the log file,
+   so that LogQuery -id can read them without scanning the files. Null clears it. Index id is CTX_REQUEST slot of diagnostic
+   context, so it is logged with events as well */
+   public static void setIndexId(String id) {
+      setContext(CTX_REQUEST, id);
+   }
+
+   //-------- Diagnostic context -------------------
+   /** sets value of diagnostic context slot (CTX_REQUEST, CTX_SESSION, CTX_USER, CTX_USECASE) of the calling thread, null clears it */
+   public static void setContext(int slot, String value) {
+      if(value == null && !_contextUsed)
+         return;
+      _contextUsed = true;
+      Context ctx = _context.get();
+      ctx.values[slot] = value;
+      ctx.version = -1;
+      if(value == null) ctx.mask &= ~(1 << slot); else ctx.mask |= 1 << slot;
+   }
+   /** returns value of diagnostic context slot of the calling thread or null */
+   public static String getContext(int slot) {
+      return _contextUsed ? _context.get().values[slot] : null;
+   }
+   /** clears all diagnostic context slots of the calling thread, for example when thread is done with request */
+   public static void clearContext() {
+      if(_contextUsed)
+         _context.get().set(null);
+   }
+   /** returns copy of the calling thread's diagnostic context to be restored in other thread, null if no slot is set */
+   public static Context contextSnapshot() {
+      if(!_contextUsed)
+         return null;
+      Context ctx = _context.get();
+      if(ctx.mask == 0)
+         return null;
+      Context copy = new Context();
+      copy.set(ctx);
+      return copy;
+   }
+   /** makes snapshot (taken by contextSnapshot() in any thread) diagnostic context of the calling thread, null clears it */
+   public static void contextRestore(Context snapshot) {
+      if(snapshot != null)
+         _contextUsed = true;
+      if(_contextUsed)
+         _context.get().set(snapshot);
+   }
+   /** raises log level of threads whose diagnostic context slot (CTX_SESSION, CTX_USER, ...) has given value to 'level',
+   for example setLevelOverride(CTX_USER, "lana", DEBUG). Level OFF removes the override. Threads pick the change up with
+   their next message. Overrides set here last until loadConfig() replaces them with Log.levelOverride@ entries */
+   public static synchronized void setLevelOverride(int slot, String value, int level) {
+      HashMap<String,Integer> overrides = new HashMap<String,Integer>(_levelOverrides);
+      if(level > OFF)
+         overrides.put(CTX_NAMES[slot]+"="+value, level);
+      else
+         overrides.remove(CTX_NAMES[slot]+"="+value);
+      setLevelOverrides(overrides);
+   }
+   /** removes all level overrides */
+   public static synchronized void clearLevelOverrides() {
+      setLevelOverrides(new HashMap<String,Integer>());
+   }
+   /** returns level overrides as "slot=value" -> level, like "user=lana" -> DEBUG */
+   public static Map<String,Integer> getLevelOverrides() {
+      return new TreeMap<String,Integer>(_levelOverrides);
+   }
+   /** publishes new level overrides. Caller holds Log class lock */
+   private static void setLevelOverrides(HashMap<String,Integer> overrides) {
+      if(overrides.isEmpty() && _levelOverrides.isEmpty())
+         return;
+      _levelOverrides = overrides;
+      _overridesVersion++;
+      _overrides = !overrides.isEmpty();
+      if(_overrides)
+         _contextUsed = true;
+   }
+   /** returns level override of the calling thread (OFF if none), recomputed only when its context or overrides changed */
+   private static int overrideLevel() {
+      Context ctx = _context.get();
+      int version = _overridesVersion;
+      if(ctx.version != version) {
+         HashMap<String,Integer> overrides = _levelOverrides;
+         int level = OFF;
+         for(int i=0; i<ctx.values.length; i++)
+            if(ctx.values[i] != null) {
+               Integer lev = overrides.get(CTX_NAMES[i]+"="+ctx.values[i]);
+               if(lev != null && lev > level)
+                  level = lev;
+            }
+         ctx.level = level;
+         ctx.version = version;
+      }
+      return ctx.level;
+   }
+   /** fixed slot diagnostic context: slot values and bit mask of slots that are set */
+   public static final class Context {
+      final String[] values = new String[CTX_NAMES.length];
+      int mask;
+      /** level override of the context and _overridesVersion it was computed for, -1 - not computed */
+      int level, version = -1;
+      /** copies slots of other context, null clears all of them */
+      void set(Context other) {
+         version = -1;
+         if(other == null) {
+            Arrays.fill(values, null);
+            mask = 0;
+         }
+         else {
+            System.arraycopy(other.values, 0, values, 0, values.length);
+            mask = other.mask;
+         }
+      }
+      /** appends set slots like "[req=k2x9-1f user=lana] " */
+      void append(CharBuf buf) {
+         if(mask == 0)
+            return;
+         buf.append('[');
+         for(int i = 0, n = 0; i < values.length; i++)
+            if(values[i] != null)
+               buf.append(n++ == 0 ? "" : " ").append(CTX_NAMES[i]).append('=').append(values[i]);
+         buf.append(']').append(' ');
+      }
+   }
+   /** forgets events kept by the calling thread's recorder, for example when thread starts serving next request */
+   public static void clearRecorder() {
+      Recorder rec = _recorder.get();
+      if(rec != null) {
+         for(Event ev : rec.events)
+            ev.clear();
+         rec.count = 0;
+      }
+   }
+   /** per thread ring of preallocated events */
+   static final class Recorder {
+      final Event[] events;
+      /** position of the next event to write and number of kept events */
+      int next, count;
+      final TimeStamp stamp = new TimeStamp();
+      Recorder(int size) {
+         events = new Event[size];
+         for(int i=0; i<size; i++)
+            events[i] = new Event();
+      }
+   }
+
+   //-------- Deduplication -------------------
+   /** counts event in its dedup slot, returns false if limit of identical events in current interval is reached. Identical
+   events have the same logger, level, message template (arguments are not compared) or text, and exception signature.
+   Supplier is not called for that: its class stands for the message, so all messages of one lambda (one call site) are
+   identical. Slot table is fixed size and shared by threads without lock; if no slot can be found for new event, it is not limited */
+   private static boolean dedupAllows(Log log, char level, String msg, Supplier<?> sup, Exception e, int limit) {
+      long hash = mix(mix(mix(System.identityHashCode(log), level), msg != null ? msg.hashCode() : sup != null ? sup.getClass().hashCode() : 0),
+                      e == null ? 0 : throwableSignature(e));
+      long now = System.currentTimeMillis();
+      int mask = _dedupSlots.length() - 1;
+      for(int i=0, idx=(int)(hash ^ (hash >>> 32)); i<8; i++, idx++) { //probe few neighbour slots
+         DedupSlot slot = _dedupSlots.get(idx & mask);
+         if(slot == null || (slot.hash != hash && slot.isIdle(now))) { //take free or idle slot for the new event
+            DedupSlot fresh = new DedupSlot(hash, log, level, msg != null ? msg : sup != null ? "message of "+sup.getClass().getName() : "null", now);
+            if(_dedupSlots.compareAndSet(idx & mask, slot, fresh))
+               slot = fresh;
+            else
+               slot = _dedupSlots.get(idx & mask);
+            if(slot == null || slot.hash != hash) continue;
+         }
+         if(slot.hash == hash) {
+            slot.lastSeen = now;
+            while(true) {
+               long w = slot.window.get();
+               boolean expired = now - (w >>> 20) >= _dedupInterval*1000L;
+               long count = expired ? 0 : w & 0xFFFFF;
+               if(count >= Math.min(limit, 0xFFFFF)) {
+                  slot.suppressed.incrementAndGet();
+                  _suppressedCount.incrementAndGet();
+                  return false;
+               }
+               if(slot.window.compareAndSet(w, expired ? (now << 20) | 1 : w+1)) { //count is reset together with window move
+                  if(expired)
+                     slot.roll(); //new interval starts, report suppressed events of the old one
+                  return true;
+               }
+            }
+         }
+      }
+      return true;
+   }
+   /** returns number of events suppressed as duplicates */
+   public static long getSuppressedCount() {
+      return _suppressedCount.get();
+   }
+   /** (re)schedules periodic reporting of suppressed events for slots that got no events since, called by loadConfig() */
+   private static synchronized void scheduleDedupSweep() {
+      if(_dedupTask != null) {
+         _dedupTask.cancel();
+         _dedupTask = null;
+      }
+      if(_dedupUsed && _dedupInterval > 0) {
+         _dedupTask = new TimerTask() {
+            public void run() {
+               long now = System.currentTimeMillis();
+               for(int i=0; i<_dedupSlots.length(); i++) {
+                  DedupSlot slot = _dedupSlots.get(i);
+                  long w;
+                  if(slot != null && slot.suppressed.get() > 0 && now - ((w = slot.window.get()) >>> 20) >= _dedupInterval*1000L
+                        && slot.window.compareAndSet(w, now << 20))
+                     slot.roll();
+               }
+            }
+         };
+         long period = _dedupInterval * 1000L;
+         getTimer().schedule(_dedupTask, period, period);
+      }
+   }
+   /** counters of one distinct event in current dedup interval */
+   static final class DedupSlot {
+      final long hash;
+      final Log log;
+      final char level;
+      /** message template or text, shown in 'suppressed' report */
+      final String sample;
+      /** start of current interval in ms (upper bits) and number of events counted in it (lower 20 bits) */
+      final AtomicLong window;
+      final AtomicLong suppressed = new AtomicLong();
+      volatile long lastSeen;
+      DedupSlot(long hash, Log log, char level, String sample, long now) {
+         this.hash = hash; this.log = log; this.level = level; this.sample = sample;
+         window = new AtomicLong(now << 20);
+         lastSeen = now;
+      }
+      /** slot can be taken by other event when it got nothing for two intervals and has nothing to report */
+      boolean isIdle(long now) {
+         return now - lastSeen > 2000L*_dedupInterval && suppressed.get() == 0;
+      }
+      /** logs report of events suppressed in the old interval. Called by the thread that moved window to the new one */
+      void roll() {
+         long n = suppressed.getAndSet(0);
+         if(n > 0) {
+            String text = sample.length() > 200 ? sample.substring(0, 200)+"..." : sample;
+            deliver(log, level, String.format("suppressed %,d identical events in last %ds: %s", n, _dedupInterval, text), null, null, null, -1, null, null);
+         }
+      }
+   }
+   /** returns 64 bit signature of exception: class names and messages of exception and its causes, stack frames of exception */
+   static long throwableSignature(Throwable e) {
+      long h = 0;
+      int n = 0;
+      for(Throwable cause = e; cause != null && n < 16; cause = cause.getCause(), n++) {
+         h = mix(h, cause.getClass().getName().hashCode());
+         String msg = cause.getMessage();
+         h = mix(h, msg == null ? 0 : msg.hashCode());
+      }
+      for(StackTraceElement el : e.getStackTrace()) //only exception's stack goes to the log, see stackText()
+         h = mix(h, el.hashCode());
+      return h;
+   }
+   /** mixes value into hash, 64 bit FNV-1a style step with final avalanche */
+   private static long mix(long h, long v) {
+      h = (h ^ v) * 0x100000001b3L;
+      return h ^ (h >>> 29);
+   }
+   /** cached stack text of exception signature */
+   static final class StackText {
+      final long sig;
+      final String text;
+      StackText(long sig, String text) { this.sig = sig; this.text = text; }
+   }
+
+   /** returns exception stack text built by buildStackText(), for repeated exceptions (same signature) it is taken from cache */
+   private static String stackText(Exception e) {
+      long sig = throwableSignature(e);
+      int idx = (int)(sig ^ (sig >>> 32)) & (_stackCache.length - 1);
+      StackText cached = _stackCache[idx];
+      if(cached != null && cached.sig == sig)
+         return cached.text;
+      String text = buildStackText(e);
+      _stackCache[idx] = new StackText(sig, text);
+      return text;
+   }
+   /** builds exception stack text: exception, first stack entry, count of skipped entries, remainder as per _stackDeepness,
+   then the same for each cause */
+   static String buildStackText(Exception e) {
+      StringBuffer b = new StringBuffer("\t").append(e.getClass().getName()).append(": ").append(e.getMessage());
+      Throwable cause = e;
+      while(cause != null){ //build exception stack: first entry, count of skipped, remainder as per stackDeepness
+         StackTraceElement[] list = e.getStackTrace(); //since JDK 1.4
+         for(int i=0; i<list.length; i++){                        //let be: list=4 (a.b.c.d), stackDeepness=3, expect a|cd
+            if(i==0) {
+               if(_stackDeepness > 0) b.append(cr).append("\t\t").append(list[i].toString()); //put first entry
+               if(list.length>_stackDeepness && _stackDeepness>1){
+                  b.append(cr).append("\t\t\t..."+(list.length-_stackDeepness)+" more ..." ); //put 'extra count' line: '1'
+                  i = list.length-_stackDeepness; // i=0 ->i=1, after ++ becomes 2, i.e. points to 'c'
+               }
+            } else
+               b.append(cr).append("\t\t").append(list[i].toString()); //put next entry: 'c' then 'd'
+         }
+         cause = cause.getCause();
+         if(cause != null)
+            b.append(cr).append("\t which in turn is caused by "+cause.getClass().getName()+": "+cause.getMessage());
+      }
+      return b.toString();
+   }
+   /** returns time (millis since 1970) when rotation period (as set by frequency) that includes passed in time ends */
+   private static long nextRotationTime(long time, int frequency) {
+      Calendar cal = _cal;
+      cal.setTimeInMillis(time);
+      cal.set(Calendar.MILLISECOND, 0);
+      cal.set(Calendar.SECOND, 0);
+      cal.set(Calendar.MINUTE, 0);
+      if(frequency == HOURLY) {
+         cal.add(Calendar.HOUR_OF_DAY, 1);
+         return cal.getTimeInMillis();
+      }
+      cal.set(Calendar.HOUR_OF_DAY, 0);
+      if(frequency == DAY10) { //"yy-MM-d" changes on days 10, 20, 30 and on the first day of month
+         int next = (cal.get(Calendar.DAY_OF_MONTH)/10 + 1)*10;
+         if(next <= cal.getActualMaximum(Calendar.DAY_OF_MONTH)) {
+            cal.set(Calendar.DAY_OF_MONTH, next);
+            return cal.getTimeInMillis();
+         }
+      }
+      else if(frequency != MONTHLY && frequency != YEARLY) { //DAILY
+         cal.add(Calendar.DAY_OF_MONTH, 1);
+         return cal.getTimeInMillis();
+      }
+      cal.set(Calendar.DAY_OF_MONTH, 1);
+      if(frequency == YEARLY) {
+         cal.set(Calendar.MONTH, Calendar.JANUARY);
+         cal.add(Calendar.YEAR, 1);
+      }
+      else
+         cal.add(Calendar.MONTH, 1);
+      return cal.getTimeInMillis();
+   }
+   /** ends series of writeEvent() calls: flushes log files as _flushPolicy requires, closes them if log level is below INFO.
+   Caller holds Log class lock. */
+   private static void endBatch() {
+      if(_fileSink != null && endBatch(_fileSink))
+         _fileSink = null;
+      if(!_routedSinks.isEmpty())
+         for(Iterator<FileSink> it = _routedSinks.values().iterator(); it.hasNext(); )
+            if(endBatch(it.next()))
+               it.remove();
+   }
+   /** flushes sink as _flushPolicy requires or closes it, returns true if it was closed */
+   private static boolean endBatch(FileSink sink) {
+      if(_level < INFO) { //closeFileOnExit
+         sink.close();
+         return true;
+      }
+      if(sink.forcePending || _flushPolicy == FLUSH_MESSAGE || (_flushPolicy == FLUSH_COUNT && sink.unflushed >= _flushCount)
+            || (_flushPolicy == FLUSH_BYTES && sink.size - sink.flushedSize >= _flushBytes))
+         sink.flush();
+      return false;
+   }
+   /** flushes all log files having unflushed messages. Caller holds Log class lock */
+   private static void flushFiles() {
+      if(_fileSink != null && _fileSink.unflushed > 0)
+         _fileSink.flush();
+      for(FileSink sink : _routedSinks.values())
+         if(sink.unflushed > 0)
+            sink.flush();
+   }
+   /** (re)schedules periodic flush of the log file as per _flushPolicy and _flushMillis, called by loadConfig() */
+   private static synchronized void scheduleFlush() {
+      if(_flushTask != null) {
+         _flushTask.cancel();
+         _flushTask = null;
+      }
+      if(_flushPolicy != FLUSH_MESSAGE) {
+         _flushTask = new TimerTask() {
+            public void run() {
+               synchronized(Log.class) {
+                  flushFiles();
+               }
+            }
+         };
+         long period = Math.max(1, _flushMillis);
+         getTimer().schedule(_flushTask, period, period);
+         addShutdownHook(); //buffered messages have to get to the file on exit
+      }
+   }
+   /** parses size like "256MB", "512K", "1G" or plain number of bytes, returns defaultVal if it cannot be parsed */
+   protected static long parseSize(String val, long defaultVal) {
+      if(val == null)
+         return defaultVal;
+      String v = val.trim().toUpperCase();
+      if(v.endsWith("B")) v = v.substring(0, v.length()-1);
+      long mult = 1;
+      if     (v.endsWith("K")) mult = 1024L;
+      else if(v.endsWith("M")) mult = 1024L*1024;
+      else if(v.endsWith("G")) mult = 1024L*1024*1024;
+      if(mult != 1) v = v.substring(0, v.length()-1);
+      try { return Long.parseLong(v.trim())*mult; } catch(NumberFormatException e) { return defaultVal; }
+   }
+
+   /** returns direct buffer kept for the file, allocates new one for new file name or changed size. Caller holds Log class lock */
+   private static ByteBuffer fileBuffer(String fileNm, int size) {
+      ByteBuffer buf = _fileBuffers.get(fileNm);
+      if(buf == null || buf.capacity() != size) {
+         buf = ByteBuffer.allocateDirect(size);
+         _fileBuffers.put(fileNm, buf);
+      }
+      return buf;
+   }
+   /** log file with its rotation state: rotation period start (as 'startedAt' chars of timestamp), time when period ends and
+   current size. Rotation renames file while it is still open, opens new file and only then closes the old one, so writing
+   does not wait on rename (where open file cannot be renamed, like on Windows, old file is closed before rename); compression and clean up of rotated files is done by Compressor thread. Used holding Log lock.
+   File keeps format (_format) it was opened with; existing file of other format is rotated away before first write. */
+   static final class FileSink {
+      /** binary file header: magic, format version, then file creation time as long */
+      static final byte[] BIN_MAGIC = {'I', 'Z', 'L', 'B'};
+      static final int BIN_VERSION = 2;
+      /** binary record tags: string definition, diagnostic context of the next log record (version 2) and log record */
+      static final int BIN_STRING = 'S', BIN_CONTEXT = 'C', BIN_RECORD = 'R';
+      /** binary string references: null, string written inline, first id of dictionary string */
+      static final int REF_NULL = 0, REF_INLINE = 1, REF_FIRST = 2;
+      /** max number of strings in binary file dictionary, later new strings are written inline */
+      static final int MAX_DICT = 65536;
+      final String fileNm;
+      /** FORMAT_TEXT, FORMAT_JSON or FORMAT_BINARY */
+      final int format;
+      /** rotation period (HOURLY, DAILY, ...) and max size (0 - no limit) of this file */
+      final int frequency;
+      long maxFileSize;
+      /** output of the file, text and json are encoded to UTF-8 straight into its buffer */
+      ChannelOutput os;
+      /** rotation important part of file opening date, like "yy-MM-dd" for DAILY rotation */
+      String startedAt;
+      /** time (millis since 1970) when current rotation period ends */
+      long nextRotationAt;
+      /** time before which rotation is not tried again after file could not be renamed */
+      long retryRotationAt;
+      /** number of bytes written to file, includes file length at open time */
+      long size;
+      /** number of size rotations done in current rotation period, gives .N part of rotated file name */
+      int sizeRotations;
+      /** number of messages written since last flush */
+      int unflushed;
+      /** size at last flush */
+      long flushedSize;
+      /** true if next flush has to force data to disk (_fsync == FSYNC_ERROR and error was written) */
+      boolean forcePending;
+      /** json line or binary record is assembled here */
+      private final CharBuf json = new CharBuf(512);
+      private final ByteBuf bin = new ByteBuf(512);
+      /** binary format: ids of strings (logger, thread names, templates) already defined in current file */
+      private final HashMap<String,Integer> dict = new HashMap<String,Integer>();
+      /** binary format: references of diagnostic context values of the event being written */
+      private final int[] ctxRefs = new int[CTX_NAMES.length];
+      /** sidecar index header, then records 'T' bucketStart(long) offset(long) for first event of every time bucket and
+      'I' id(string) start(long) end(long) for every run of consecutive events logged under the same index id */
+      static final byte[] IDX_MAGIC = {'I', 'Z', 'L', 'X'};
+      static final int IDX_VERSION = 1;
+      static final int IDX_TIME = 'T', IDX_ID = 'I';
+      /** sidecar index fileNm.idx, null if indexing is off or format is binary */
+      ChannelOutput idx;
+      private final ByteBuf idxRec = new ByteBuf(64);
+      /** time bucket (time / bucket millis) of last indexed event */
+      private long bucket;
+      /** index id of the current run of events and file offset it started at */
+      private String runId;
+      private long runStart;
+      /** opens existing or creates new log file, reads from its beginning startedAt. If file was started in a rotation
+      period other than current one or has other format, sets nextRotationAt so first write rotates it. */
+      FileSink(String fileNm, int frequency, long maxFileSize) throws IOException {
+         this.fileNm = fileNm;
+         this.format = _format;
+         this.frequency = frequency;
+         this.maxFileSize = maxFileSize;
+         long now = System.currentTimeMillis();
+         String currentAt = _stamp.prefix(now, frequency);
+         startedAt = currentAt;
+         File file = new File(fileNm);
+         File logDir = file.getAbsoluteFile().getParentFile();
+         if(!logDir.exists())
+           logDir.mkdirs();
+         boolean sameFormat = true;
+         if(file.exists() && file.length() > 0){ //read startedAt, if file is too short to get it, use currentAt
+            long started = -1;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 256));
+            try {
+               byte[] head = new byte[32];
+               int n = in.read(head);
+               int fileFormat = n >= 4 && head[0]=='I' && head[1]=='Z' && head[2]=='L' && head[3]=='B' ? FORMAT_BINARY
+                              : n > 0 && head[0]=='{' ? FORMAT_JSON : FORMAT_TEXT;
+               sameFormat = fileFormat == format && (fileFormat != FORMAT_BINARY || (n > 4 && head[4] == BIN_VERSION));
+               if(fileFormat == FORMAT_BINARY && n >= 13)
+                  started = new DataInputStream(new ByteArrayInputStream(head, 5, 8)).readLong();
+               else if(fileFormat == FORMAT_JSON) { //{"ts":1234567890123,...
+                  String ts = new String(head, 0, n, "ISO-8859-1");
+                  int end = ts.indexOf(',');
+                  if(ts.startsWith("{\"ts\":") && end > 6)
+                     try { started = Long.parseLong(ts.substring(6, end)); } catch(NumberFormatException e) {}
+               }
+               else if(n >= frequency)
+                  startedAt = new String(head, 0, frequency, "ISO-8859-1");
+            }
+            finally { in.close(); }
+            if(started >= 0)
+               startedAt = _stamp.prefix(started, frequency);
+            size = file.length();
+         }
+         nextRotationAt = currentAt.equals(startedAt) && sameFormat ? nextRotationTime(now, frequency) : now;
+         open(now);
+      }
+      /** opens (appending) file for writing, starts binary file with header */
+      private void open(long time) throws IOException {
+         os = new ChannelOutput(fileNm, fileBuffer(fileNm, _fileBufferSize));
+         if(_index && format != FORMAT_BINARY) { //binary records depend on strings defined earlier, reading cannot start in the middle
+            idx = new ChannelOutput(fileNm+".idx", fileBuffer(fileNm+".idx", 8192));
+            if(idx.pos() == 0) {
+               idxRec.len = 0;
+               idxRec.put(IDX_MAGIC).put(IDX_VERSION);
+               idx.write(idxRec.bytes, 0, idxRec.len);
+            }
+            bucket = Long.MIN_VALUE;
+            runId = null;
+         }
+         if(format == FORMAT_BINARY) {
+            dict.clear(); //appending to existing file: strings get defined again, decoder takes the latest definition
+            if(size == 0) {
+               bin.len = 0;
+               bin.put(BIN_MAGIC).put(BIN_VERSION).putLong(time);
+               writeBin();
+            }
+         }
+      }
+      /** rotates file if event time is past current rotation period or file reached maxFileSize */
+      void prepare(long time) throws IOException {
+         if((time >= nextRotationAt || (maxFileSize > 0 && size >= maxFileSize)) && time >= retryRotationAt)
+            rotate(time);
+      }
+      /** adds index records for event about to be written: offset of new time bucket, start and end of index id run */
+      void index(Event ev) throws IOException {
+         if(idx == null)
+            return;
+         long b = ev.time / (_indexBucket * 1000L);
+         String id = ev.ctx.values[CTX_REQUEST];
+         if(b == bucket && (id == null ? runId == null : id.equals(runId)))
+            return;
+         long pos = position();
+         if(runId != null && !runId.equals(id))
+            endRun(pos);
+         if(b != bucket) {
+            bucket = b;
+            idxRec.len = 0;
+            idxRec.put(IDX_TIME).putLong(b * _indexBucket * 1000L).putLong(pos);
+            idx.write(idxRec.bytes, 0, idxRec.len);
+         }
+         if(id != null && runId == null) {
+            runId = id;
+            runStart = pos;
+         }
+      }
+      /** writes index record of current index id run ending at file offset pos */
+      private void endRun(long pos) throws IOException {
+         if(pos > runStart) {
+            idxRec.len = 0;
+            idxRec.put(IDX_ID).putString(runId).putLong(runStart).putLong(pos);
+            idx.write(idxRec.bytes, 0, idxRec.len);
+         }
+         runId = null;
+      }
+      /** returns file offset next byte will be written at */
+      private long position() {
+         return os.pos();
+      }
+      /** ends index id run, writes and closes sidecar index */
+      private void closeIndex() {
+         if(idx == null)
+            return;
+         try {
+            if(runId != null)
+               endRun(position());
+            idx.close();
+         }
+         catch(IOException e) { System.out.println("\tCannot write log index "+e.getLocalizedMessage()); }
+         idx = null;
+      }
+      void write(char[] chars, int len) throws IOException {
+         os.write(chars, 0, len);
+         size = os.pos();
+      }
+      void write(String str) throws IOException {
+         os.write(str);
+         size = os.pos();
+      }
+      /** writes exception stack the way Throwable prints it, used in _preJDK1_4 mode */
+      void printStackTrace(Throwable e) throws IOException {
+         PrintWriter out = new PrintWriter(new OutputStreamWriter(os, "UTF-8"));
+         e.printStackTrace(out);
+         out.flush(); //pushes encoded chars to os buffer
+         size = os.pos();
+      }
+      /** writes event as JSON line: {"ts":..,"level":"..","logger":..,"thread":"..","msg":"..","exception":..}, message text
+      is already formatted in chars from msgStart to msgEnd */
+      void writeJson(Event ev, char[] chars, int msgStart, int msgEnd) throws IOException {
+         CharBuf b = json;
+         b.len = 0;
+         b.append("{\"ts\":").appendNum(ev.time).append(",\"level\":\"").append(ev.level).append("\",\"logger\":");
+         appendJson(b, ev.log == null ? null : ev.log.settings.loggedClassName);
+         b.append(",\"thread\":");
+         appendJson(b, ev.thread == null ? null : ev.thread.getName());
+         if(ev.ctx.mask != 0) {
+            b.append(",\"ctx\":{");
+            for(int i = 0, n = 0; i < CTX_NAMES.length; i++)
+               if(ev.ctx.values[i] != null) {
+                  b.append(n++ == 0 ? "\"" : ",\"").append(CTX_NAMES[i]).append("\":");
+                  appendJson(b, ev.ctx.values[i]);
+               }
+            b.append('}');
+         }
+         b.append(",\"msg\":\"");
+         for(int i=msgStart; i<msgEnd; i++)
+            appendJson(b, chars[i]);
+         b.append("\",\"exception\":");
+         appendJson(b, ev.e == null ? null : stackText(ev.e));
+         b.append('}').append('\n');
+         write(b.chars, b.len);
+      }
+      /** appends JSON string literal or null */
+      static void appendJson(CharBuf b, String str) {
+         if(str == null) {
+            b.append("null");
+            return;
+         }
+         b.append('"');
+         for(int i=0, n=str.length(); i<n; i++)
+            appendJson(b, str.charAt(i));
+         b.append('"');
+      }
+      /** appends char escaped as JSON requires */
+      private static void appendJson(CharBuf b, char c) {
+         if(c >= ' ' && c != '"' && c != '\\')
+            b.append(c);
+         else if(c == '"')  b.append('\\').append('"');
+         else if(c == '\\') b.append('\\').append('\\');
+         else if(c == '\n') b.append('\\').append('n');
+         else if(c == '\r') b.append('\\').append('r');
+         else if(c == '\t') b.append('\\').append('t');
+         else b.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 15, 16));
+      }
+      /** writes event as binary record, strings used first time (logger, thread name, template, context values) are defined
+      before it: 'S' id(varint) string. If event has diagnostic context, 'C' mask(varint, bit per set slot) and ref of every
+      set slot goes next. Then 'R' time(long) level(byte) logger(ref) thread(ref) template(ref, REF_NULL if message is
+      plain text) and either argc(varint) + argument strings or message string, then exception stack string or REF_NULL byte.
+      Strings are UTF-8 with varint length prefix, numbers are big-endian. */
+      void writeBinary(Event ev) throws IOException {
+         ByteBuf b = bin;
+         b.len = 0;
+         boolean template = ev.argc >= 0 && ev.sup == null && ev.msg != null;
+         int logger = ref(ev.log == null ? null : ev.log.settings.loggedClassName);
+         int thread = ref(ev.thread == null ? null : ev.thread.getName());
+         int tmpl = template ? ref(ev.msg) : REF_NULL;
+         Context ctx = ev.ctx;
+         if(ctx.mask != 0) {
+            for(int i=0; i<ctxRefs.length; i++) //request ids do not repeat, they would only fill the dictionary
+               ctxRefs[i] = i == CTX_REQUEST && ctx.values[i] != null ? REF_INLINE : ref(ctx.values[i]);
+            b.put(BIN_CONTEXT).putVarint(ctx.mask);
+            for(int i=0; i<ctxRefs.length; i++)
+               if(ctx.values[i] != null)
+                  putRef(ctxRefs[i], ctx.values[i]);
+         }
+         b.put(BIN_RECORD).putLong(ev.time).put(ev.level);
+         putRef(logger, ev.log == null ? null : ev.log.settings.loggedClassName);
+         putRef(thread, ev.thread == null ? null : ev.thread.getName());
+         putRef(tmpl, ev.msg);
+         if(template) {
+            b.putVarint(ev.argc);
+            for(int i=0; i<ev.argc; i++)
+               b.putString(Event.argText(ev.arg(i)));
+         }
+         else
+            b.putString(Event.format(ev.msg, ev.a0, ev.a1, ev.args, ev.argc, ev.sup));
+         if(ev.e == null)
+            b.put(REF_NULL);
+         else
+            b.put(REF_INLINE).putString(stackText(ev.e));
+         writeBin();
+      }
+      /** returns reference of str for binary record, writes definition of new dictionary string */
+      private int ref(String str) {
+         if(str == null)
+            return REF_NULL;
+         Integer id = dict.get(str);
+         if(id != null)
+            return id;
+         if(dict.size() >= MAX_DICT)
+            return REF_INLINE;
+         id = dict.size() + REF_FIRST;
+         dict.put(str, id);
+         bin.put(BIN_STRING).putVarint(id).putString(str);
+         return id;
+      }
+      private void putRef(int ref, String str) {
+         bin.putVarint(ref);
+         if(ref == REF_INLINE)
+            bin.putString(str);
+      }
+      private void writeBin() throws IOException {
+         os.write(bin.bytes, 0, bin.len);
+         size = os.pos();
+      }
+      /** flushes buffered data to the file */
+      void flush() {
+         long start = System.nanoTime();
+         try {
+            os.drain();
+            if(idx != null)
+               idx.drain();
+         }
+         catch(IOException e) { System.out.println("\tCannot write log file "+e.getLocalizedMessage()); }
+         if(_fsync == FSYNC_FLUSH || forcePending)
+            try { os.force(); } catch(IOException e) { System.out.println("\tCannot force log file to disk "+e.getLocalizedMessage()); }
+         _flushLatency.record(System.nanoTime() - start);
+         unflushed = 0;
+         flushedSize = size;
+         forcePending = false;
+      }
+      /** renames current file to fileNm.startedAt[.N].old and continues in a new file */
+      void rotate(long time) throws IOException {
+         File file = new File(fileNm);
+         String base = fileNm+"."+startedAt.replace('-', '_').replace(' ', '_');//"yy-MM-dd HH" -> "yy_MM_dd_HH"
+         File rotated = new File(base+(sizeRotations==0 ? "" : "."+sizeRotations)+".old");
+         while(rotated.exists() || new File(rotated.getPath()+".gz").exists()) //size rotation within one period
+            rotated = new File(base+"."+(++sizeRotations)+".old");
+         closeIndex();
+         if(_fsync != FSYNC_NEVER) //rotated file is complete, make it durable
+            try { os.force(); } catch(IOException e) { System.out.println("\tCannot force log file to disk "+e.getLocalizedMessage()); }
+         forcePending = false;
+         ChannelOutput old = os;
+         old.drain(); //buffered bytes belong to old file, buffer is handed over to the new one
+         boolean renamed = file.renameTo(rotated);
+         if(!renamed) { //Windows cannot rename open file: close it first there
+            old.closeChannel();
+            renamed = file.renameTo(rotated);
+         }
+         if(!renamed) { //file and its index are appended to, rotation is tried again in a minute
+            System.out.println("\tCannot rename log file "+fileNm+" to "+rotated.getPath());
+            retryRotationAt = time + 60000L;
+            open(time);
+            old.closeChannel();
+            return;
+         }
+         new File(fileNm+".idx").renameTo(new File(rotated.getPath()+".idx")); //index goes along with its file
+         sizeRotations++;
+         _rotations.incrementAndGet();
+         size = flushedSize = 0;
+         unflushed = 0;
+         open(time); //new file is open before the old one is closed
+         old.closeChannel();
+         if(time >= nextRotationAt) {
+            sizeRotations = 0;
+            startedAt = _stamp.prefix(time, frequency);
+            nextRotationAt = nextRotationTime(time, frequency);
+         }
+         Compressor.submit(rotated, fileNm);
+      }
+      void close() {
+         closeIndex();
+         flush();
+         try { os.close(); } catch(IOException e) { System.out.println("\tCannot close log file "+e.getLocalizedMessage()); }
+      }
+   }
+
+   /** OutputStream over FileChannel with one large reusable direct buffer: bytes are collected in the buffer and written to
+   the channel when it is full or on drain(), so burst of messages costs few write calls and no copying to temporary direct
+   buffer. Chars are encoded to UTF-8 straight into the buffer, without encoder or intermediate byte arrays. flush() keeps
+   bytes in the buffer, so writer flushing its encoder does not cause write call either */
+   static final class ChannelOutput extends OutputStream {
+      final FileChannel channel;
+      final ByteBuffer buf;
+      /** file offset of the first buffered byte: file length at open time plus bytes drained */
+      private long drained;
+      /** chunk String chars are copied to for encoding */
+      private char[] strChars;
+      ChannelOutput(String fileNm, int bufferSize) throws IOException {
+         this(fileNm, ByteBuffer.allocateDirect(bufferSize));
+      }
+      /** opens file for appending with given buffer, buffer must not be used by other open ChannelOutput */
+      ChannelOutput(String fileNm, ByteBuffer buffer) throws IOException {
+         channel = new FileOutputStream(fileNm, true).getChannel(); //append
+         buf = buffer;
+         buf.clear();
+         drained = channel.size();
+      }
+      /** returns file offset next byte goes to */
+      long pos() {
+         return drained + buf.position();
+      }
+      public void write(int b) throws IOException {
+         if(!buf.hasRemaining()) drain();
+         buf.put((byte)b);
+      }
+      /** encodes chars to UTF-8, unpaired surrogate is written as '?' */
+      void write(char[] chars, int off, int len) throws IOException {
+         ByteBuffer b = buf;
+         for(int i=off, end=off+len; i<end; i++) {
+            if(b.remaining() < 4) drain();
+            char c = chars[i];
+            if(c < 0x80)
+               b.put((byte)c);
+            else if(c < 0x800)
+               b.put((byte)(0xC0 | c >> 6)).put((byte)(0x80 | c & 0x3F));
+            else if(!Character.isSurrogate(c))
+               b.put((byte)(0xE0 | c >> 12)).put((byte)(0x80 | c >> 6 & 0x3F)).put((byte)(0x80 | c & 0x3F));
+            else if(Character.isHighSurrogate(c) && i+1 < end && Character.isLowSurrogate(chars[i+1])) {
+               int cp = Character.toCodePoint(c, chars[++i]);
+               b.put((byte)(0xF0 | cp >> 18)).put((byte)(0x80 | cp >> 12 & 0x3F)).put((byte)(0x80 | cp >> 6 & 0x3F)).put((byte)(0x80 | cp & 0x3F));
+            }
+            else
+               b.put((byte)'?');
+         }
+      }
+      /** encodes str to UTF-8, copying it by chunks to reusable char array */
+      void write(String str) throws IOException {
+         if(strChars == null)
+            strChars = new char[1024];
+         for(int from = 0, n = str.length(); from < n; ) {
+            int to = Math.min(n, from + strChars.length);
+            if(to < n && Character.isHighSurrogate(str.charAt(to-1)))
+               to--; //keep surrogate pair in one chunk
+            str.getChars(from, to, strChars, 0);
+            write(strChars, 0, to - from);
+            from = to;
+         }
+      }
+      public void write(byte[] b, int off, int len) throws IOException {
+         while(len > 0) {
+            if(!buf.hasRemaining()) drain();
+            int n = Math.min(len, buf.remaining());
+            buf.put(b, off, n);
+            off += n;
+            len -= n;
+         }
+      }
+      /** writes buffered bytes to the channel */
+      void drain() throws IOException {
+         int n = buf.position();
+         _bytesWritten.addAndGet(n);
+         buf.flip();
+         while(buf.hasRemaining())
+            channel.write(buf);
+         buf.clear();
+         drained += n;
+      }
+      public void flush() {
+      }
+      /** writes buffered bytes and forces file content to disk */
+      void force() throws IOException {
+         drain();
+         channel.force(false);
+      }
+      public void close() throws IOException {
+         try { drain(); }
+         finally { channel.close(); }
+      }
+      /** closes channel without writing buffered bytes: caller drained them and buffer may be used by other ChannelOutput */
+      void closeChannel() {
+         try { channel.close(); } catch(IOException e) { System.out.println("\tCannot close log file "+e.getLocalizedMessage()); }
+      }
+   }
+
+   /** growable byte buffer binary records are assembled in, not thread safe */
+   static final class ByteBuf {
+      byte[] bytes;
+      int len;
+      ByteBuf(int capacity) {
+         bytes = new byte[capacity];
+      }
+      ByteBuf put(int b) {
+         if(len == bytes.length) grow(1);
+         bytes[len++] = (byte)b;
+         return this;
+      }
+      ByteBuf put(byte[] b) {
+         if(len + b.length > bytes.length) grow(b.length);
+         System.arraycopy(b, 0, bytes, len, b.length);
+         len += b.length;
+         return this;
+      }
+      /** puts long as 8 bytes, big-endian */
+      ByteBuf putLong(long v) {
+         if(len + 8 > bytes.length) grow(8);
+         for(int shift=56; shift>=0; shift-=8)
+            bytes[len++] = (byte)(v >>> shift);
+         return this;
+      }
+      /** puts non negative int in 7 bit groups, lowest first, high bit set on all but last byte */
+      ByteBuf putVarint(int v) {
+         while((v & ~0x7F) != 0) {
+            put((v & 0x7F) | 0x80);
+            v >>>= 7;
+         }
+         return put(v);
+      }
+      /** puts string as varint length of its UTF-8 bytes followed by the bytes. Unpaired surrogate is written as '?' */
+      ByteBuf putString(String str) {
+         int n = str.length(), utfLen = 0;
+         for(int i=0; i<n; i++) {
+            char c = str.charAt(i);
+            if(c < 0x80) utfLen++;
+            else if(c < 0x800) utfLen += 2;
+            else if(Character.isHighSurrogate(c) && i+1 < n && Character.isLowSurrogate(str.charAt(i+1))) { utfLen += 4; i++; }
+            else if(Character.isSurrogate(c)) utfLen++;
+            else utfLen += 3;
+         }
+         putVarint(utfLen);
+         if(len + utfLen > bytes.length) grow(utfLen);
+         byte[] b = bytes;
+         int p = len;
+         for(int i=0; i<n; i++) {
+            char c = str.charAt(i);
+            if(c < 0x80)
+               b[p++] = (byte)c;
+            else if(c < 0x800) {
+               b[p++] = (byte)(0xC0 | (c >> 6));
+               b[p++] = (byte)(0x80 | (c & 0x3F));
+            }
+            else if(Character.isHighSurrogate(c) && i+1 < n && Character.isLowSurrogate(str.charAt(i+1))) {
+               int cp = Character.toCodePoint(c, str.charAt(++i));
+               b[p++] = (byte)(0xF0 | (cp >> 18));
+               b[p++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+               b[p++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+               b[p++] = (byte)(0x80 | (cp & 0x3F));
+            }
+            else if(Character.isSurrogate(c))
+               b[p++] = '?';
+            else {
+               b[p++] = (byte)(0xE0 | (c >> 12));
+               b[p++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+               b[p++] = (byte)(0x80 | (c & 0x3F));
+            }
+         }
+         len = p;
+         return this;
+      }
+      private void grow(int extra) {
+         bytes = Arrays.copyOf(bytes, Math.max(bytes.length*2, len+extra));
+      }
+   }
+
+   /** background thread that gzips rotated log files (when _compressRotated is true) and deletes old ones beyond
+   _maxRotatedFiles count or _maxRotatedSize total size */
+   static final class Compressor extends Thread {
+      private static Compressor _instance;
+      private final java.util.concurrent.LinkedBlockingQueue<File[]> queue = new java.util.concurrent.LinkedBlockingQueue<File[]>();
+      private Compressor() {
+         super("izFrame-Log-compressor");
+         setDaemon(true);
+      }
+      /** queues rotated file for compression and clean up of older rotated files of logFileNm */
+      static synchronized void submit(File rotated, String logFileNm) {
+         if(_instance == null) {
+            _instance = new Compressor();
+            _instance.start();
+         }
+         _instance.queue.add(new File[]{rotated, new File(logFileNm)});
+      }
+      public void run() {
+         while(true) {
+            try {
+               File[] job = queue.take();
+               if(_compressRotated)
+                  gzip(job[0]);
+               cleanUp(job[1]);
+            }
+            catch(InterruptedException e) { return; }
+            catch(Exception e) { System.out.println("Log.Compressor: "+e); }
+         }
+      }
+      /** compresses file to file.gz, deletes file when done */
+      static void gzip(File file) throws IOException {
+         File gz = new File(file.getPath()+".gz");
+         File tmp = new File(file.getPath()+".gz.tmp");
+         InputStream in = new FileInputStream(file);
+         OutputStream out = new java.util.zip.GZIPOutputStream(new FileOutputStream(tmp), 65536);
+         try {
+            byte[] buf = new byte[65536];
+            for(int n; (n = in.read(buf)) > 0; )
+               out.write(buf, 0, n);
+         }
+         finally {
+            in.close();
+            out.close();
+         }
+         tmp.setLastModified(file.lastModified()); //cleanUp() relies on it to find oldest files
+         if(tmp.renameTo(gz))
+            file.delete();
+      }
+      /** deletes oldest rotated files (logFile.*.old, logFile.*.old.gz) exceeding _maxRotatedFiles or _maxRotatedSize */
+      static void cleanUp(File logFile) {
+         if(_maxRotatedFiles <= 0 && _maxRotatedSize <= 0)
+            return;
+         final String prefix = logFile.getName()+".";
+         File dir = logFile.getAbsoluteFile().getParentFile();
+         File[] files = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File d, String nm) { return nm.startsWith(prefix) && (nm.endsWith(".old") || nm.endsWith(".old.gz")); }
+         });
+         if(files == null)
+            return;
+         Arrays.sort(files, new Comparator<File>() { //newest first
+            public int compare(File a, File b) { return Long.compare(b.lastModified(), a.lastModified()); }
+         });
+         long total = 0;
+         for(int i=0; i<files.length; i++) {
+            total += files[i].length();
+            if((_maxRotatedFiles > 0 && i >= _maxRotatedFiles) || (_maxRotatedSize > 0 && total > _maxRotatedSize)) {
+               files[i].delete();
+               String nm = files[i].getPath(); //sidecar index of the file, log.old.idx is kept for log.old.gz too
+               new File((nm.endsWith(".gz") ? nm.substring(0, nm.length()-3) : nm)+".idx").delete();
+            }
+         }
+      }
+   }
+
+   //-------- Async mode -------------------
+   /** starts background writer if it is not running yet. Called by loadConfig() when Log.async=true, can be called directly */
+   public static synchronized void startAsync() {
+      if(_asyncWriter != null)
+         return;
+      AsyncWriter writer = new AsyncWriter(_asyncBufferSize, _asyncFullPolicy, _asyncDropLevel);
+      writer.start();
+      _asyncWriter = writer;
+      addShutdownHook();
+   }
+   /** registers (once) shutdown hook that makes sure buffered events get to the file and appenders when JVM exits */
+   private static synchronized void addShutdownHook() {
+      if(!_hookAdded) {
+         _hookAdded = true;
+         Runtime.getRuntime().addShutdownHook(new Thread("izFrame-Log-shutdown") {
+            public void run() {
+               stopAsync(); //writer passes its events to appender queues, so it goes first
+               AsyncAppender[] queues;
+               synchronized(Log.class) {
+                  queues = _asyncAppenders.values().toArray(new AsyncAppender[0]);
+               }
+               long deadline = System.currentTimeMillis() + 5000;
+               for(AsyncAppender queue : queues)
+                  queue.stopQueue();
+               for(AsyncAppender queue : queues)
+                  try { queue.join(Math.max(1, deadline - System.currentTimeMillis())); } catch(InterruptedException e) { break; }
+               Appender[] appenders;
+               synchronized(Log.class) {
+                  flushFiles();
+                  appenders = _loadedAppenderClasses.values().toArray(new Appender[0]);
+               }
+               for(Appender appender : appenders) //outside of lock: appender may log itself
+                  try { appender.flush(); } catch(Throwable t) { t.printStackTrace(); }
+               synchronized(Log.class) { //console goes last, so it gets lines logged above; later ones are written by caller
+                  _consoleAsync = false;
+                  stopConsole();
+               }
+            }
+         });
+      }
+   }
+   /** stops background writer after it has written all events already in its buffer; following calls are written synchronously */
+   public static void stopAsync() {
+      AsyncWriter writer;
+      synchronized(Log.class) {
+         writer = _asyncWriter;
+         _asyncWriter = null;
+      }
+      if(writer == null)
+         return;
+      writer.stopping = true;
+      LockSupport.unpark(writer);
+      try { writer.join(10000); } catch(InterruptedException e) { Thread.currentThread().interrupt(); }
+   }
+   /** starts console thread with buffer of _consoleBufferSize chars. Caller holds Log class lock */
+   private static void startConsole() {
+      ConsoleSink sink = new ConsoleSink(_consoleBufferSize);
+      sink.start();
+      _consoleSink = sink;
+      addShutdownHook();
+   }
+   /** waits (with FULL_BLOCK console policy) until console thread takes full console buffer. Called after Log lock is released,
+   so caller is slowed down to console speed without holding up threads waiting for the lock */
+   private static void awaitConsole() {
+      ConsoleSink sink = _consoleSink;
+      if(sink != null && sink.full && !Thread.holdsLock(Log.class)) { //logging from code called under Log lock can't wait
+         _consoleWaits.incrementAndGet();
+         sink.awaitRoom();
+      }
+   }
+   /** lets console thread write out buffered lines and exit. Caller holds Log class lock, which console thread never takes */
+   private static void stopConsole() {
+      ConsoleSink sink = _consoleSink;
+      _consoleSink = null;
+      if(sink != null)
+         sink.stopSink();
+   }
+   /** returns number of events dropped because async buffer was full */
+   public static long getDroppedCount() {
+      return _droppedCount.get();
+   }
+
+   //-------- Metrics -------------------
+   /** returns snapshot of logging metrics: events written by level, bytes written, flushes and their duration, rotations,
+   appender failures, queue depths, dropped and suppressed events. Counters are totals since Log class was loaded. Same
+   values are exposed through platform MBean "izFrame:type=Log" (see Log.jmx). */
+   public static Metrics getMetrics() {
+      return new Metrics();
+   }
+   /** registers or unregisters metrics MBean as _jmx requires, called by loadConfig(). Failure (name used by other class
+   loader of the same server, no JMX) is reported, logging goes on without MBean */
+   private static synchronized void registerMBean() {
+      try {
+         javax.management.MBeanServer server = java.lang.management.ManagementFactory.getPlatformMBeanServer();
+         if(_jmx && _mbeanName == null) {
+            javax.management.ObjectName name = new javax.management.ObjectName("izFrame:type=Log");
+            server.registerMBean(new MetricsBean(), name);
+            _mbeanName = name;
+         }
+         else if(!_jmx && _mbeanName != null) {
+            server.unregisterMBean(_mbeanName);
+            _mbeanName = null;
+         }
+      }
+      catch(Throwable t) { System.out.println("\tLog metrics MBean is not registered: "+t); }
+   }
+   /** logging metrics snapshot, see getMetrics() */
+   public static final class Metrics {
+      /** events written to console/file by level, traceResults are trace timing messages */
+      public final long errors, warnings, infos, traces, debugs, traceResults;
+      /** bytes written to log files, sidecar index included */
+      public final long bytesWritten;
+      /** number of log file flushes and their mean, p99 and max duration in microseconds */
+      public final long flushes, flushMeanMicros, flushP99Micros, flushMaxMicros;
+      /** number of log file rotations */
+      public final long rotations;
+      /** number of exceptions thrown by appenders, called directly or from their queues */
+      public final long appenderFailures;
+      /** events waiting in async mode buffer and in appender queues */
+      public final int asyncQueueDepth, appenderQueueDepth;
+      /** events dropped because async buffer or appender queue was full */
+      public final long dropped, appenderDropped;
+      /** events suppressed as duplicates (Log.dedupLimit) */
+      public final long suppressed;
+      /** console lines dropped because console buffer was full, times callers waited for console thread (consoleFullPolicy) */
+      public final long consoleDropped, consoleWaits;
+      /** chars waiting in console buffers */
+      public final int consolePending;
+      Metrics() {
+         errors = _levelCounts.get(0); warnings = _levelCounts.get(1); infos = _levelCounts.get(2);
+         traces = _levelCounts.get(3); debugs = _levelCounts.get(4); traceResults = _levelCounts.get(5);
+         bytesWritten = _bytesWritten.get();
+         long[] counts = _flushLatency.snapshot(false);
+         long count = 0;
+         for(long c : counts) count += c;
+         long max = _flushLatency.max(false);
+         flushes = count;
+         flushMeanMicros = count == 0 ? 0 : _flushLatency.sum(false) / count / 1000;
+         flushP99Micros = count == 0 ? 0 : Math.min(max, Histogram.percentile(counts, count, 99.0)) / 1000;
+         flushMaxMicros = max / 1000;
+         rotations = _rotations.get();
+         AsyncWriter writer = _asyncWriter;
+         asyncQueueDepth = writer == null ? 0 : writer.ring.size();
+         dropped = _droppedCount.get();
+         long failures = _appenderFailures.get(), appDropped = 0;
+         int appDepth = 0;
+         for(AsyncAppender q : _asyncAppenders.values()) {
+            failures += q.getFailedCount();
+            appDropped += q.getDroppedCount();
+            appDepth += q.getQueueSize();
+         }
+         appenderFailures = failures;
+         appenderDropped = appDropped;
+         appenderQueueDepth = appDepth;
+         suppressed = _suppressedCount.get();
+         consoleDropped = _consoleDropped.get();
+         consoleWaits = _consoleWaits.get();
+         ConsoleSink console = _consoleSink;
+         consolePending = console == null ? 0 : console.pending();
+      }
+      public String toString() {
+         return "errors="+errors+" warnings="+warnings+" infos="+infos+" traces="+traces+" debugs="+debugs+" traceResults="+traceResults
+               +" bytesWritten="+bytesWritten+" flushes="+flushes+" flushMeanMicros="+flushMeanMicros+" flushP99Micros="+flushP99Micros
+               +" flushMaxMicros="+flushMaxMicros+" rotations="+rotations+" appenderFailures="+appenderFailures
+               +" asyncQueueDepth="+asyncQueueDepth+" appenderQueueDepth="+appenderQueueDepth+" dropped="+dropped
+               +" appenderDropped="+appenderDropped+" suppressed="+suppressed+" consoleDropped="+consoleDropped
+               +" consoleWaits="+consoleWaits+" consolePending="+consolePending;
+      }
+   }
+   /** management interface of metrics MBean "izFrame:type=Log", attributes are getMetrics() values */
+   public interface MetricsBeanMBean {
+      long getErrors(); long getWarnings(); long getInfos(); long getTraces(); long getDebugs(); long getTraceResults();
+      long getBytesWritten(); long getFlushes(); long getFlushMeanMicros(); long getFlushP99Micros(); long getFlushMaxMicros();
+      long getRotations(); long getAppenderFailures(); int getAsyncQueueDepth(); int getAppenderQueueDepth();
+      long getDropped(); long getAppenderDropped(); long getSuppressed();
+      long getConsoleDropped(); long getConsoleWaits(); int getConsolePending();
+   }
+   /** standard MBean over getMetrics(), every attribute read takes fresh snapshot */
+   public static final class MetricsBean implements MetricsBeanMBean {
+      public long getErrors()           { return getMetrics().errors; }
+      public long getWarnings()         { return getMetrics().warnings; }
+      public long getInfos()            { return getMetrics().infos; }
+      public long getTraces()           { return getMetrics().traces; }
+      public long getDebugs()           { return getMetrics().debugs; }
+      public long getTraceResults()     { return getMetrics().traceResults; }
+      public long getBytesWritten()     { return getMetrics().bytesWritten; }
+      public long getFlushes()          { return getMetrics().flushes; }
+      public long getFlushMeanMicros()  { return getMetrics().flushMeanMicros; }
+      public long getFlushP99Micros()   { return getMetrics().flushP99Micros; }
+      public long getFlushMaxMicros()   { return getMetrics().flushMaxMicros; }
+      public long getRotations()        { return getMetrics().rotations; }
+      public long getAppenderFailures() { return getMetrics().appenderFailures; }
+      public int getAsyncQueueDepth()   { return getMetrics().asyncQueueDepth; }
+      public int getAppenderQueueDepth(){ return getMetrics().appenderQueueDepth; }
+      public long getDropped()          { return getMetrics().dropped; }
+      public long getAppenderDropped()  { return getMetrics().appenderDropped; }
+      public long getSuppressed()       { return getMetrics().suppressed; }
+      public long getConsoleDropped()   { return getMetrics().consoleDropped; }
+      public long getConsoleWaits()     { return getMetrics().consoleWaits; }
+      public int getConsolePending()    { return getMetrics().consolePending; }
+   }
+
+   /** growable char buffer used to assemble log line without creating intermediate Strings, not thread safe */
+   static final class CharBuf {
+      char[] chars;
+      int len;
+      CharBuf(int capacity) {
+         chars = new char[capacity];
+      }
+      CharBuf append(char c) {
+         if(len == chars.length) grow(1);
+         chars[len++] = c;
+         return this;
+      }
+      CharBuf append(String str) {
+         if(str == null) str = "null";
+         int n = str.length();
+         if(len + n > chars.length) grow(n);
+         str.getChars(0, n, chars, len);
+         len += n;
+         return this;
+      }
+      /** appends n chars of src starting from off */
+      CharBuf append(char[] src, int off, int n) {
+         if(len + n > chars.length) grow(n);
+         System.arraycopy(src, off, chars, len, n);
+         len += n;
+         return this;
+      }
+      /** appends chars from 'from' to 'to' (exclusive) of str */
+      CharBuf appendRange(String str, int from, int to) {
+         int n = to - from;
+         if(len + n > chars.length) grow(n);
+         str.getChars(from, to, chars, len);
+         len += n;
+         return this;
+      }
+      /** appends non negative number */
+      CharBuf appendNum(long num) {
+         if(num < 10)
+            return append((char)('0' + num));
+         int digits = 1;
+         for(long n = num/10; n > 0; n /= 10) digits++;
+         if(len + digits > chars.length) grow(digits);
+         for(int i=len+digits-1; i>=len; i--) {
+            chars[i] = (char)('0' + num%10);
+            num /= 10;
+         }
+         len += digits;
+         return this;
+      }
+      /** appends number padded with leading zeros to specified number of digits */
+      CharBuf append(int num, int digits) {
+         if(len + digits > chars.length) grow(digits);
+         for(int i=len+digits-1; i>=len; i--) {
+            chars[i] = (char)('0' + num%10);
+            num /= 10;
+         }
+         len += digits;
+         return this;
+      }
+      private void grow(int extra) {
+         chars = Arrays.copyOf(chars, Math.max(chars.length*2, len+extra));
+      }
+      public String toString() {
+         return new String(chars, 0, len);
+      }
+   }
+
+   /** produces "yy-MM-dd HH:mm:ss.SS" timestamps (.SS is hundredths of second). Date and time part is rebuilt only when time
+   moves to the next second, otherwise cached chars are copied and two last digits are computed. Not thread safe. */
+   static final class TimeStamp {
+      private final Calendar cal = Calendar.getInstance();
+      /** cached "yy-MM-dd HH:mm:ss." for second cachedSec */
+      private final CharBuf cache = new CharBuf(20);
+      private long cachedSec = Long.MIN_VALUE;
+      /** appends timestamp for time (millis since 1970) to buf */
+      CharBuf append(CharBuf buf, long time) {
+         long sec = time / 1000;
+         if(sec != cachedSec) {
+            cal.setTimeInMillis(time);
+            cache.len = 0;
+            cache.append(cal.get(Calendar.YEAR)%100, 2).append('-').append(cal.get(Calendar.MONTH)+1, 2).append('-')
+                 .append(cal.get(Calendar.DAY_OF_MONTH), 2).append(' ').append(cal.get(Calendar.HOUR_OF_DAY), 2).append(':')
+                 .append(cal.get(Calendar.MINUTE), 2).append(':').append(cal.get(Calendar.SECOND), 2).append('.');
+            cachedSec = sec;
+         }
+         if(buf.len + 20 > buf.chars.length) buf.grow(20);
+         System.arraycopy(cache.chars, 0, buf.chars, buf.len, 18);
+         buf.len += 18;
+         return buf.append((int)(time % 1000)/10, 2);
+      }
+      /** returns first 'length' chars of timestamp, for example for rotation _frequency DAILY=8 it is "yy-MM-dd" */
+      String prefix(long time, int length) {
+         CharBuf buf = new CharBuf(20);
+         append(buf, time);
+         return new String(buf.chars, 0, Math.min(length, buf.len));
+      }
+   }
+
+   /** log event - one slot of EventRing. Slots are preallocated and reused so publishing event does not create objects */
+   static final class Event {
+      /** instance logger or null for static calls */
+      Log log;
+      char level;
+      /** plain message text when argc==-1 (null if sup provides text), otherwise template with {} placeholders */
+      String msg;
+      /** template arguments: first two are kept in a0, a1 when args array is null, argc is their number */
+      Object a0, a1;
+      Object[] args;
+      int argc = -1;
+      /** provides message text for lazy logging calls */
+      Supplier<?> sup;
+      Exception e;
+      /** creation time, milliseconds since 1970 */
+      long time;
+      /** thread that created event */
+      Thread thread;
+      /** diagnostic context of the thread when event was created */
+      final Context ctx = new Context();
+      void set(Log log, char level, String msg, Object a0, Object a1, Object[] args, int argc, Supplier<?> sup, Exception e, long time) {
+         this.log = log; this.level = level; this.msg = msg; this.a0 = a0; this.a1 = a1; this.args = args; this.argc = argc;
+         this.sup = sup; this.e = e; this.time = time; this.thread = Thread.currentThread();
+         if(_contextUsed)
+            ctx.set(_context.get());
+      }
+      /** drops references so that the slot does not keep garbage alive */
+      void clear() {
+         log = null; msg = null; a0 = null; a1 = null; args = null; sup = null; e = null; thread = null;
+         if(ctx.mask != 0)
+            ctx.set(null);
+      }
+      /** replaces template or supplier by resulting text, used before calling appenders */
+      void resolve() {
+         if(argc >= 0 || sup != null) {
+            msg = format(msg, a0, a1, args, argc, sup);
+            a0 = null; a1 = null; args = null; argc = -1; sup = null;
+         }
+      }
+      /** appends message text to buf */
+      void appendMsg(CharBuf buf) {
+         appendMsg(buf, msg, a0, a1, args, argc, sup);
+      }
+      /** returns message text: plain msg, Supplier result or template with {} replaced by arguments */
+      static String format(String msg, Object a0, Object a1, Object[] args, int argc, Supplier<?> sup) {
+         if(argc < 0 && sup == null)
+            return msg;
+         CharBuf buf = new CharBuf(msg == null ? 64 : msg.length()+64);
+         appendMsg(buf, msg, a0, a1, args, argc, sup);
+         return buf.toString();
+      }
+      /** appends to buf message text: plain msg, Supplier result or template with {} replaced by arguments. Placeholders
+      without argument stay as is, arguments without placeholder are ignored */
+      static void appendMsg(CharBuf buf, String msg, Object a0, Object a1, Object[] args, int argc, Supplier<?> sup) {
+         if(sup != null) {
+            Object res;
+            try { res = sup.get(); }
+            catch(RuntimeException ex) { res = "[message Supplier failed: "+ex+"]"; }
+            buf.append(String.valueOf(res));
+            return;
+         }
+         if(argc < 0 || msg == null) {
+            buf.append(msg);
+            return;
+         }
+         int from = 0, argIdx = 0, n = msg.length();
+         for(int i = msg.indexOf("{}"); i >= 0 && argIdx < argc; i = msg.indexOf("{}", from)) {
+            buf.appendRange(msg, from, i);
+            buf.append(argText(args != null ? args[argIdx] : (argIdx == 0 ? a0 : a1)));
+            argIdx++;
+            from = i + 2;
+         }
+         buf.appendRange(msg, from, n);
+      }
+      /** returns text template argument is shown as */
+      static String argText(Object arg) {
+         return arg instanceof Object[] ? Arrays.deepToString((Object[])arg) : String.valueOf(arg);
+      }
+      /** returns template argument number i */
+      Object arg(int i) {
+         return args != null ? args[i] : (i == 0 ? a0 : a1);
+      }
+   }
+
+   /** bounded multi-producer single-consumer ring buffer of preallocated events. Each slot has a sequence number: producer
+   may use slot at position pos when its sequence equals pos, consumer may read it when sequence equals pos+1. Producers
+   claim positions with CAS on tail, so no lock is taken on the caller's side. */
+   static final class EventRing {
+      private final Event[] slots;
+      private final AtomicLongArray seq;
+      private final int mask;
+      private final AtomicLong tail = new AtomicLong();
+      /** next position to read, written by consumer thread only */
+      private volatile long head;
+      EventRing(int size) {
+         int cap = 2;
+         while(cap < size && cap < (1<<30)) cap <<= 1;
+         slots = new Event[cap];
+         seq = new AtomicLongArray(cap);
+         mask = cap - 1;
+         for(int i=0; i<cap; i++) {
+            slots[i] = new Event();
+            seq.set(i, i);
+         }
+      }
+      /** claims next free position, returns -1 if buffer is full */
+      long tryClaim() {
+         while(true) {
+            long pos = tail.get();
+            long dif = seq.get((int)pos & mask) - pos;
+            if(dif == 0) {
+               if(tail.compareAndSet(pos, pos+1))
+                  return pos;
+            }
+            else if(dif < 0)
+               return -1; //slot was not released by consumer yet
+            //else other producer took this position, try next one
+         }
+      }
+      /** returns event of claimed position for producer to fill in */
+      Event slot(long pos) {
+         return slots[(int)pos & mask];
+      }
+      /** makes filled in event visible to consumer */
+      void publish(long pos) {
+         seq.lazySet((int)pos & mask, pos+1);
+      }
+      /** consumer: returns next published event or null */
+      Event peek() {
+         long h = head;
+         int i = (int)h & mask;
+         return seq.get(i) == h+1 ? slots[i] : null;
+      }
+      /** consumer: frees event returned by peek() for reuse by producers */
+      void release() {
+         long h = head;
+         int i = (int)h & mask;
+         slots[i].clear();
+         seq.lazySet(i, h + mask + 1);
+         head = h + 1;
+      }
+      /** number of claimed but not yet released positions */
+      int size() {
+         return (int)(tail.get() - head);
+      }
+   }
+
+   /** background writer thread of async mode. Callers publish events into its EventRing, writer drains it in batches
+   calling appenders and writing to console and file, file is flushed once per batch. */
+   static final class AsyncWriter extends Thread {
+      /** max number of events written between flushes */
+      private static final int BATCH = 256;
+      private final EventRing ring;
+      private final int fullPolicy;
+      private final int dropLevel;
+      private volatile boolean sleeping;
+      volatile boolean stopping;
+      /** set holding Log lock when writer starts its final drain, from then on producers that claimed event later write it */
+      private boolean exited;
+      AsyncWriter(int size, int fullPolicy, int dropLevel) {
+         super("izFrame-Log-writer");
+         setDaemon(true);
+         ring = new EventRing(size);
+         this.fullPolicy = fullPolicy;
+         this.dropLevel = dropLevel;
+      }
+      /** puts event to the ring. Returns true if event was queued or dropped, false if caller has to write it itself:
+      writer is stopping, caller is the writer itself or caller holds Log lock and would wait for the writer forever */
+      boolean offer(Log log, char level, String msg, Object a0, Object a1, Object[] args, int argc, Supplier<?> sup, Exception e) {
+         if(stopping || Thread.currentThread() == this)
+            return false;
+         long pos = ring.tryClaim();
+         while(pos < 0) { //buffer is full
+            if(fullPolicy == FULL_DROP || (fullPolicy == FULL_DROP_BELOW && levelOf(level) > dropLevel)) {
+               _droppedCount.incrementAndGet();
+               return true;
+            }
+            if(stopping || Thread.holdsLock(Log.class))
+               return false;
+            LockSupport.unpark(this);
+            LockSupport.parkNanos(50000L);
+            pos = ring.tryClaim();
+         }
+         ring.slot(pos).set(log, level, msg, a0, a1, args, argc, sup, e, System.currentTimeMillis());
+         ring.publish(pos);
+         if(sleeping)
+            LockSupport.unpark(this);
+         if(stopping) //writer may have done its final drain before the event was claimed
+            synchronized(Log.class) {
+               if(exited)
+                  drainLeft();
+            }
+         return true;
+      }
+      /** writes events left in ring: waits for claimed events to be published. Caller holds Log lock and is the only consumer:
+      writer thread doing its final drain or, once writer exited, producer that claimed event after it */
+      private void drainLeft() {
+         Context callerCtx = contextSnapshot(); //write() sets context of the event for appenders
+         while(ring.size() > 0) {
+            Event ev = ring.peek();
+            if(ev == null) { //claimed but not published yet, producer does not need Log lock to publish
+               Thread.yield();
+               continue;
+            }
+            write(ev);
+            ring.release();
+         }
+         endBatch();
+         contextRestore(callerCtx);
+      }
+      /** runs appenders of the event and writes it unless one of them consumed it */
+      private void write(Event ev) {
+         try {
+            boolean consumed = false;
+            if(ev.log != null && ev.log.settings.appenders != null) {
+               ev.resolve(); //appenders need text
+               if(_contextUsed) //appenders see context of the thread that logged
+                  _context.get().set(ev.ctx);
+               consumed = ev.log.runAppenders(ev.level, ev.msg, ev.e);
+            }
+            if(!consumed)
+               synchronized(Log.class) { writeEvent(ev); }
+         }
+         catch(Throwable t) { t.printStackTrace(); } //writer should survive anything
+      }
+      public void run() {
+         while(true) {
+            Event ev = ring.peek();
+            if(ev == null) {
+               if(stopping && ring.size() == 0) {
+                  synchronized(Log.class) { //events claimed after the check above are written here or by their producers
+                     exited = true;
+                     drainLeft();
+                  }
+                  break;
+               }
+               sleeping = true;
+               if(ring.peek() == null)
+                  LockSupport.parkNanos(this, 10000000L); //10ms, producers unpark us earlier
+               sleeping = false;
+               continue;
+            }
+            for(int n=0; ev != null && n < BATCH; n++) {
+               write(ev);
+               ring.release();
+               ev = ring.peek();
+            }
+            synchronized(Log.class) { endBatch(); }
+            awaitConsole();
+         }
+      }
+   }
+
+   /** queue and worker thread of async appender. Callers (or async writer) put events into its own bounded EventRing and
+   return, worker calls the appender. So slow or failing appender delays only its own queue; when queue is full, events are
+   handled as per fullPolicy. Async appender never consumes message, i.e. console, file and next appenders always get it. */
+   public static final class AsyncAppender extends Thread implements Appender {
+      private final Appender appender;
+      private final EventRing ring;
+      final int size, fullPolicy, dropLevel;
+      private final AtomicLong queuedCount = new AtomicLong(), droppedCount = new AtomicLong(), failedCount = new AtomicLong();
+      private volatile boolean sleeping;
+      volatile boolean stopping;
+      AsyncAppender(String name, Appender appender, int size, int fullPolicy, int dropLevel) {
+         super("izFrame-Log-appender-"+name);
+         setDaemon(true);
+         this.appender = appender;
+         this.size = size;
+         this.fullPolicy = fullPolicy;
+         this.dropLevel = dropLevel;
+         ring = new EventRing(size);
+      }
+      /** returns appender this queue calls */
+      public Appender getAppender() { return appender; }
+      /** number of events put into queue since it was started */
+      public long getQueuedCount() { return queuedCount.get(); }
+      /** number of events dropped because queue was full */
+      public long getDroppedCount() { return droppedCount.get(); }
+      /** number of events appender failed on (threw exception) */
+      public long getFailedCount() { return failedCount.get(); }
+      /** number of events waiting in queue */
+      public int getQueueSize() { return ring.size(); }
+      /** queues message for the appender, always returns false (message is not consumed) */
+      public boolean logMessage(char level, String loggedClassName, String msg, Exception e) {
+         if(stopping || Thread.currentThread() == this) { //late or appender's own message: call it directly
+            callAppender(level, loggedClassName, msg, e);
+            return false;
+         }
+         long pos = ring.tryClaim();
+         while(pos < 0) { //queue is full
+            //caller holding Log lock can't wait: appender may log itself and wait for the lock
+            if(fullPolicy == FULL_DROP || (fullPolicy == FULL_DROP_BELOW && levelOf(level) > dropLevel) || stopping || Thread.holdsLock(Log.class)) {
+               droppedCount.incrementAndGet();
+               return false;
+            }
+            LockSupport.unpark(this);
+            LockSupport.parkNanos(50000L);
+            pos = ring.tryClaim();
+         }
+         //message is already formatted, loggedClassName goes to a0 as Event has no field for it
+         ring.slot(pos).set(null, level, msg, loggedClassName, null, null, -1, null, e, 0);
+         ring.publish(pos);
+         queuedCount.incrementAndGet();
+         if(sleeping)
+            LockSupport.unpark(this);
+         return false;
+      }
+      /** lets worker finish queued events and exit */
+      void stopQueue() {
+         stopping = true;
+         LockSupport.unpark(this);
+      }
+      private void callAppender(char level, String loggedClassName, String msg, Exception e) {
+         try {
+            appender.logMessage(level, loggedClassName, msg, e);
+         }
+         catch(Throwable t) { //count every failure, but don't flood console
+            if(failedCount.incrementAndGet() % 1000 == 1) t.printStackTrace();
+         }
+      }
+      public void run() {
+         while(true) {
+            Event ev = ring.peek();
+            if(ev == null) {
+               if(stopping && ring.size() == 0)
+                  break;
+               sleeping = true;
+               if(ring.peek() == null)
+                  LockSupport.parkNanos(this, 10000000L); //10ms, producers unpark us earlier
+               sleeping = false;
+               continue;
+            }
+            if(_contextUsed) //appender sees context of the thread that logged
+               _context.get().set(ev.ctx);
+            callAppender(ev.level, (String)ev.a0, ev.msg, ev.e);
+            ring.release();
+         }
+      }
+   }
+
+   /** console writer thread. Callers (holding Log lock) append lines to filling buffer, thread swaps it with the written out one
+   and writes it to System.out at once, so writing to console costs caller one array copy. When console is slower than logging,
+   lines pile up in buffer and go out with one write, when buffer is full callers act as per _consoleFullPolicy, never waiting
+   while they hold Log lock. */
+   static final class ConsoleSink extends Thread {
+      final int capacity;
+      /** buffer callers append to and buffer being written out, swapped by console thread */
+      private CharBuf filling, draining;
+      /** lines dropped since it was reported */
+      private long dropped;
+      private boolean stopping;
+      /** true when filling buffer reached capacity, until console thread takes it */
+      volatile boolean full;
+      ConsoleSink(int capacity) {
+         super("izFrame-Log-console");
+         setDaemon(true);
+         this.capacity = capacity;
+         filling = new CharBuf(Math.min(capacity, 64*1024));
+         draining = new CharBuf(Math.min(capacity, 64*1024));
+      }
+      /** appends len chars of line, line separator and (if not null) exception stack. Never waits, as caller holds Log lock:
+      when buffer is full, line is dropped or (FULL_BLOCK) added anyway and caller waits in awaitConsole() later */
+      synchronized void append(char[] line, int len, String stack, char level) {
+         int n = len + cr.length() + (stack == null ? 0 : stack.length() + cr.length());
+         if(filling.len > 0 && filling.len + n > capacity) { //line longer than buffer goes to empty one
+            if(_consoleFullPolicy == FULL_DROP || (_consoleFullPolicy == FULL_DROP_BELOW && levelOf(level) > _consoleDropLevel)) {
+               dropped++;
+               _consoleDropped.incrementAndGet();
+               return;
+            }
+            full = true;
+         }
+         if(filling.len == 0)
+            notifyAll(); //console thread waits for lines
+         if(dropped > 0)
+            appendDropped();
+         filling.append(line, 0, len).append(cr);
+         if(stack != null)
+            filling.append(stack).append(cr);
+         if(filling.len >= capacity)
+            full = true;
+      }
+      /** waits until console thread takes full buffer (or stops) */
+      synchronized void awaitRoom() {
+         while(full && !stopping)
+            try { wait(); } catch(InterruptedException e) { Thread.currentThread().interrupt(); return; }
+      }
+      /** number of chars waiting to be written */
+      synchronized int pending() {
+         return filling.len + draining.len;
+      }
+      /** reports lines dropped since last report */
+      private void appendDropped() {
+         filling.append('\t').appendNum(dropped).append(" console lines were dropped: console buffer was full").append(cr);
+         dropped = 0;
+      }
+      /** makes thread write out buffered lines and exit, waits for it at most 5 seconds */
+      void stopSink() {
+         synchronized(this) {
+            stopping = true;
+            notifyAll();
+         }
+         try { join(5000); } catch(InterruptedException e) { Thread.currentThread().interrupt(); }
+      }
+      public void run() {
+         PrintStream ps = null;
+         Writer out = null;
+         while(true) {
+            CharBuf buf;
+            synchronized(this) {
+               if(dropped > 0) //no line came after drops to report them
+                  appendDropped();
+               while(filling.len == 0) {
+                  if(stopping)
+                     return;
+                  try { wait(); } catch(InterruptedException e) {}
+               }
+               buf = filling;
+               filling = draining;
+               draining = buf;
+               full = false;
+               notifyAll(); //callers waiting in awaitRoom()
+            }
+            try {
+               if(System.out != ps) { //first write or System.setOut() was called
+                  ps = System.out;
+                  out = new OutputStreamWriter(ps);
+               }
+               out.write(buf.chars, 0, buf.len);
+               out.flush();
+            }
+            catch(IOException e) {} //console is gone, there is nowhere to report it
+            buf.len = 0;
+         }
+      }
+   }
 
    //-------- Tracing/timing -------------------
+   //Timing state is kept per thread in TraceStack, so tracing threads do not contend on any lock. Module started in
+   //one thread is seen only by trace()/traceStop() calls of the same thread.
+   /** true if trace functions work for the calling thread: log level is TRACE or more, thread runs sampled trace or its level
+   is overridden to TRACE or more */
+   private static boolean tracing() {
+      return _level >= TRACE || (_sampledThreads.get() > 0 && _traceStack.get().sampled) || _overrides && overrideLevel() >= TRACE;
+   }
+   /** starts sampled trace of the calling thread: until traceSampledStop() trace functions of the thread work as if log level
+   was TRACE, so one request in many can be timed through all layers (see spanStart()) while log level stays INFO */
+   public static void traceSampledStart() {
+      TraceStack stack = _traceStack.get();
+      if(!stack.sampled) {
+         stack.sampled = true;
+         _sampledThreads.incrementAndGet();
+      }
+   }
+   /** ends sampled trace of the calling thread, modules left running are stopped as by traceClose() */
+   public static void traceSampledStop() {
+      TraceStack stack = _traceStack.get();
+      if(stack.sampled) {
+         traceClose();
+         stack.sampled = false;
+         _sampledThreads.decrementAndGet();
+      }
+   }
+   /** starts timing operation of a layer (like "DBservice", "query") only if the calling thread runs sampled trace. Otherwise
+   costs read of _sampledThreads, and thread local lookup while some thread runs sampled trace. Module is named cls.operation
+   with package part of cls dropped ("DBservice.query") and is nested in modules already started, like Web servlet and UseCase ones */
+   public static void spanStart(String cls, String operation) {
+      if(_sampledThreads.get() > 0 && _traceStack.get().sampled)
+         traceStart(cls.substring(cls.lastIndexOf('.')+1)+"."+operation, "");
+   }
+   /** stops module started by spanStart() */
+   public static void spanStop(String cls, String operation) {
+      if(_sampledThreads.get() > 0 && _traceStack.get().sampled)
+         traceStop(cls.substring(cls.lastIndexOf('.')+1)+"."+operation);
+   }
+   /** decides which units of work (requests) get sampled trace: 1 in 'rate' chosen at random, at most maxPerSec of them per
+   second, units forced to be traced (see admit()) included. Rate 0 samples all of them when log level is TRACE and none
+   otherwise. Thread safe, does not lock */
+   public static final class TraceSampler {
+      public final int rate, maxPerSec;
+      /** current second (upper bits) and number of units sampled in it (lower 20 bits) */
+      private final AtomicLong window = new AtomicLong();
+      public TraceSampler(int rate, int maxPerSec) {
+         this.rate = rate;
+         this.maxPerSec = Math.min(maxPerSec, 0xFFFFF);
+      }
+      /** returns true if unit of work should be traced */
+      public boolean sample() {
+         if(rate <= 0 ? _level < TRACE : rate > 1 && java.util.concurrent.ThreadLocalRandom.current().nextInt(rate) != 0)
+            return false;
+         return admit();
+      }
+      /** counts unit of work against maxPerSec, returns false if limit of current second is reached. sample() calls it for
+      units chosen by rate, caller calls it directly for unit that asks to be traced (like request with force header) */
+      public boolean admit() {
+         if(maxPerSec <= 0)
+            return true;
+         long sec = System.currentTimeMillis() / 1000;
+         while(true) {
+            long w = window.get();
+            long count = (w >>> 20) == sec ? w & 0xFFFFF : 0;
+            if(count >= maxPerSec)
+               return false;
+            if(window.compareAndSet(w, (sec << 20) | (count+1)))
+               return true;
+         }
+      }
+   }
    /** start timing the default "TraceTime" module */
    public static void traceStart() {
-      if(_level >= TRACE) traceStart((Object)null);
+      if(tracing()) traceStart((Object)null);
    }
    /** start timing for the Object (moduleID will be based on object class name) */
    public static void traceStart(Object obj) {
-      if(_level < TRACE) return;
+      if(!tracing()) return;
       String[] nm = new String[2];//objName, shortObjNm
       genName(obj, nm);
       //System.out.println("traceStart(): nm="+nm[0]+", shNm="+nm[1]);
-      traceStart(nm[1], nm[0]);
+      traceStart(nm[1], nm[0], nm[0], nm[0].substring(nm[0].lastIndexOf('.')+1)); //latency histogram is kept per class, not per object
    }
    /** start timing the module with specific ID and name. ID can be anything, for example "MyModule"
    Another useful approach is to use class name as moduleID and function name as moduleName
    and then to invoke traceStart() at function entry and traceStop() at function exit */
-   public static synchronized void traceStart(String moduleID, String moduleName) {
-      if(_level < TRACE) return;
+   public static void traceStart(String moduleID, String moduleName) {
+      if(tracing()) traceStart(moduleID, moduleName, moduleID, moduleName == null || moduleName.length() == 0 ? moduleID : moduleID+"."+moduleName);
+   }
+   /** start timing the module, its duration will be recorded in latency histogram named histNm, module is shown as 'frame'
+   in collapsed stacks */
+   private static void traceStart(String moduleID, String moduleName, String histNm, String frame) {
+      if(!tracing()) return;
       if(!_traceTiming) {
          logMessage('T', "module "+moduleID+" started", null);
          return;
       }
       if(moduleName==null) moduleName="";
-      if(findModuleIndex(moduleID)!=-1) return; //already started
-      if(_currIndex < _moduleNum){
-         Date currDt = new java.util.Date();
-         long curr = currDt.getTime(); //number of milliseconds since 1970
-         _startArr[_currIndex] = curr;
-         _currArr[_currIndex] = curr;
-         _moduleIDArr[_currIndex] = moduleID;
-         _moduleNmArr[_currIndex] = moduleName;
-         _msgArr[_currIndex] = new StringBuffer(512);
-         int idx = _currIndex;
-         if(_resBlended) idx = 0; //when blended, all results go to the single stream
-         //_msgArr[idx].append("\n"+moduleID+": "+moduleName+ " started at "+(curr/1000)%1000+"\n");
-         _currIndex++;
-         trace(moduleID, moduleName+" started at "+_tf.format(currDt), false);
+      TraceStack stack = _traceStack.get();
+      if(stack.find(moduleID)!=-1) return; //already started
+      if(stack.size < _moduleNum){
+         long now = System.nanoTime();
+         Span span = stack.push();
+         span.start = now;
+         span.curr = now;
+         span.moduleID = moduleID;
+         span.moduleName = moduleName;
+         span.histNm = histNm;
+         span.msg.len = 0;
+         span.childNanos = 0;
+         String parent = stack.size > 1 ? stack.spans[stack.size-2].path : stack.basePath;
+         frame = frame.replace(';', ':');
+         span.path = parent == null ? frame : parent+";"+frame;
+         span.frame = frame;
+         span.eventEnded = false;
+         if(_traceEventFile != null)
+            traceEvent(stack, span, 'B', now);
+         trace(moduleID, moduleName+" started at "+stack.timeFormat().format(new Date()), false);
       }
       else {
          warn(moduleName+" tracing cannot be started, too many modules already");
@@ -692,19 +3223,19 @@ public class Log {
 
    /** intermediate timing for the default module and default message like step1, step2, etc. */
    public static void trace() {
-      if(_level >= TRACE) trace("step "+_currStep++);
+      if(tracing()) trace("step "+_traceStack.get().step++);
    }
    /** intermediate timing for the default module but with some specific message */
    public static void trace(String msg) {
-      if(_level >= TRACE) trace((Object)null, msg);
+      if(tracing()) trace((Object)null, msg);
    }
    /** intermediate timing for the declared object and default message like step1, step2, etc. */
    public static void trace(Object obj) {
-      if(_level >= TRACE) trace(obj, "step "+_currStep++);
+      if(tracing()) trace(obj, "step "+_traceStack.get().step++);
    }
    /** intermediate timing for the declared object and with the passed in message */
    public static void trace(Object obj, String msg) {
-      if(_level < TRACE) return;
+      if(!tracing()) return;
       String[] nm = new String[2];//objName, shortObjNm
       genName(obj, nm);
       //System.out.println("in trace(Object obj, String msg), obj="+obj+" msg="+msg+" nm1="+nm[1]);
@@ -713,86 +3244,384 @@ public class Log {
    /** intermediate timing for the specified module and with the passed in message
    does trace shifting message one 'tab' to the right */
    public static void trace(String moduleID, String msg) {
-      if(_level >= TRACE) trace(moduleID, msg, true);
+      if(tracing()) trace(moduleID, msg, true);
    }
    /** main 'trace() - intermediate timing for the specified module and with the passed in
    message does trace shifting message one 'tab' to the right if 'tab' parameter is 'true' */
    public static void trace(String moduleID, String msg, boolean tab) {
       //System.out.println("entered trace(String moduleID, String msg)");
-      if(_level < TRACE) return;
+      if(!tracing()) return;
       if(!_traceTiming) {
          logMessage('T', "module "+moduleID+" "+msg, null);
          return;
       }
-      int moduleIdx = findModuleIndex(moduleID);
+      TraceStack stack = _traceStack.get();
+      int moduleIdx = stack.find(moduleID);
       //System.out.println("in trace(mdl, msg), mdl="+moduleID+" msg="+msg+" idx="+moduleIdx);
-      if(moduleIdx >= 0 && moduleIdx < _currIndex){
-         Date currDt = new java.util.Date();
-         long curr = currDt.getTime();
-         long start = _startArr[moduleIdx];
-         long prev = _currArr[moduleIdx];
-         double frPr = ((double)(curr-prev ))/1000;  //from previous
-         double frSt = ((double)(curr-start))/1000; //from start
-         int idx = moduleIdx;
-         String offset = tab ? "  " : "";
+      if(moduleIdx >= 0){
+         long curr = System.nanoTime();
+         Span span = stack.spans[moduleIdx];
+         CharBuf buf = span.msg;
+         int shift = tab ? 1 : 0;
          if(_resBlended){
-            idx = 0; //when blended, all messages go to a single stream with index 0
-            for(int i = 0; i < moduleIdx; i++) offset += "  ";//2 spaces shift for each new module
+            buf = stack.blended; //when blended, all messages go to a single stream of the thread
+            shift += moduleIdx;  //2 spaces shift for each new module
          }
-         String dt = _df.format(currDt);
-         if(dt.length() > 20) dt = dt.substring(0,20);
-         _msgArr[idx].append(dt+nf.format(frPr)+nf.format(frSt)+" | "+offset+moduleID+" : "+msg+cr);
-         _currArr[moduleIdx] = curr;
+         stack.stamp.append(buf, System.currentTimeMillis());
+         appendSecs(buf, curr - span.curr);  //from previous
+         appendSecs(buf, curr - span.start); //from start
+         buf.append(" | ");
+         for(int i = 0; i < shift; i++) buf.append("  ");
+         buf.append(moduleID).append(" : ").append(msg).append(cr);
+         span.curr = curr;
       }
    }
 
    /** stop timing  for the default "TraceTime" module */
    public static void traceStop() {
-      if(_level >= TRACE) traceStop("TraceTime");
+      if(tracing()) traceStop("TraceTime");
    }
    /** stop timing for the declared Object (uses Object class name) */
    public static void traceStop(Object obj) {
-      if(_level < TRACE)  return;
+      if(!tracing())  return;
       String[] nm = new String[2];//objName, shortObjNm
       genName(obj, nm);
       traceStop(nm[1]);
    }
    /** stop timing for the specified module (uses moduleID) */
-   public static synchronized void traceStop(String moduleID) {
-      if(_level < TRACE) return;
+   public static void traceStop(String moduleID) {
+      if(!tracing()) return;
       if(!_traceTiming) {
          logMessage('T', "module "+moduleID+" stopped", null);
          return;
       }
-      int free = findModuleIndex(moduleID);
-      //System.out.println("traceStop(): free="+free+", _currIndex="+_currIndex);
-      if(free>=0 && free < _currIndex) {
-         trace(moduleID, _moduleNmArr[free]+" done at "+_tf.format(new Date()), false);
-         if(!_resBlended) {//when blended, we will continue appending results to stream 0
-            logMessage(' ', _msgArr[free].toString(), null); //trace() displays all results of the module
+      TraceStack stack = _traceStack.get();
+      int idx = stack.find(moduleID);
+      //System.out.println("traceStop(): idx="+idx+", size="+stack.size);
+      if(idx >= 0) {
+         Span span = stack.spans[idx];
+         long end = System.nanoTime();
+         long duration = end - span.start;
+         getHistogram(span.histNm).record(duration);
+         if(_traceEventFile != null && !span.eventEnded) {
+            //module stopped before modules started after it: viewer needs B/E pairs nested, so they are ended first
+            for(int i = stack.size-1; i > idx; i--)
+               if(!stack.spans[i].eventEnded) {
+                  traceEvent(stack, stack.spans[i], 'E', end);
+                  stack.spans[i].eventEnded = true;
+               }
+            traceEvent(stack, span, 'E', end);
+         }
+         if(_traceFlameFile != null) { //self time of the module goes to its stack, whole duration is child time of the enclosing one
+            long[] self = stack.flame.get(span.path);
+            if(self == null)
+               stack.flame.put(span.path, self = new long[1]);
+            self[0] += duration - span.childNanos;
+            if(idx > 0)
+               stack.spans[idx-1].childNanos += duration;
+         }
+         trace(moduleID, span.moduleName+" done at "+stack.timeFormat().format(new Date()), false);
+         if(!_resBlended) //when blended, we will continue appending results to the thread stream
+            logMessage(' ', span.msg.toString(), null); //trace() displays all results of the module
+         stack.remove(idx);
+         if(_resBlended && stack.size == 0 && stack.blended.len > 0) { //thread has no running modules, show its stream
+            logMessage(' ', stack.blended.toString(), null);
+            stack.blended.len = 0;
+         }
+         if(stack.size == 0 && !stack.flame.isEmpty())
+            writeFlame(stack);
+         if(stack.events.len > 0 && (stack.size == 0 || stack.events.len >= 65536))
+            writeTraceEvents(stack);
+      }
+   }
+   /** appends collapsed stacks collected by the thread to _traceFlameFile, one "frame;frame;frame micros" line per stack */
+   private static void writeFlame(TraceStack stack) {
+      CharBuf buf = new CharBuf(256);
+      for(Map.Entry<String,long[]> entry : stack.flame.entrySet()) {
+         long micros = entry.getValue()[0] / 1000;
+         if(micros > 0)
+            buf.append(entry.getKey()).append(' ').appendNum(micros).append('\n');
+      }
+      stack.flame.clear();
+      String fileNm = _traceFlameFile;
+      if(buf.len > 0 && fileNm != null)
+         synchronized(_flameLock) { Utils.writeFile(buf.toString(), fileNm, true); }
+   }
+
+   /** appends Chrome trace event of the module, phase 'B' (begin) or 'E' (end), to events buffer of the thread. Every chunk
+   of events starts with thread_name metadata event, so viewer shows thread names however chunks are interleaved */
+   private static void traceEvent(TraceStack stack, Span span, char phase, long nanos) {
+      CharBuf b = stack.events;
+      Thread thread = Thread.currentThread();
+      if(b.len == 0) {
+         b.append("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":").appendNum(thread.getId()).append(",\"args\":{\"name\":");
+         FileSink.appendJson(b, thread.getName());
+         b.append("}},\n");
+      }
+      b.append("{\"name\":");
+      FileSink.appendJson(b, span.frame);
+      b.append(",\"ph\":\"").append(phase).append("\",\"ts\":").appendNum(nanos / 1000)
+       .append(",\"pid\":1,\"tid\":").appendNum(thread.getId()).append("},\n");
+   }
+   /** appends trace events collected by the thread to _traceEventFile, opens the file (starting new one with '[') if needed */
+   private static void writeTraceEvents(TraceStack stack) {
+      String fileNm = _traceEventFile;
+      synchronized(_traceEventLock) {
+         try {
+            if(_traceEventOut != null && !_traceEventOutNm.equals(fileNm)) {
+               _traceEventOut.close();
+               _traceEventOut = null;
+            }
+            if(_traceEventOut == null && fileNm != null) {
+               File file = new File(fileNm);
+               File dir = file.getAbsoluteFile().getParentFile();
+               if(!dir.exists())
+                  dir.mkdirs();
+               boolean fresh = file.length() == 0;
+               _traceEventOut = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+               _traceEventOutNm = fileNm;
+               if(fresh)
+                  _traceEventOut.write("[\n");
+            }
+            if(_traceEventOut != null) {
+               _traceEventOut.write(stack.events.chars, 0, stack.events.len);
+               _traceEventOut.flush(); //whole chunk goes to the file, so it can be viewed while run goes on
+            }
+         }
+         catch(IOException e) {
+            System.out.println("\tCannot write trace events to "+fileNm+" "+e.getLocalizedMessage());
+            try { _traceEventOut.close(); } catch(Exception ignore) {}
+            _traceEventOut = null;
          }
       }
-      while(free!=-1 && free < _currIndex){ //shift free indexes
-         _startArr[free]    = _startArr     [free + 1];
-         _currArr[free]     = _currArr      [free + 1];
-         _moduleIDArr[free] = _moduleIDArr  [free + 1];
-         _moduleNmArr[free] = _moduleNmArr  [free + 1];
-         if(!_resBlended) {//when blended, we will continue appending results to stream 0
-            _msgArr[free]      = _msgArr       [free + 1];
+      stack.events.len = 0;
+   }
+
+   //---- trace context propagation -----------------
+   /** returns trace context of the calling thread - collapsed stack of its started modules, so that work handed to other
+   thread is timed as part of them. Null if thread has no started modules or tracing is off */
+   public static TraceContext traceContext() {
+      if(!_traceTiming || !tracing())
+         return null;
+      TraceStack stack = _traceStack.get();
+      String path = stack.size > 0 ? stack.spans[stack.size-1].path : stack.basePath;
+      return path == null ? null : new TraceContext(path, stack.sampled);
+   }
+   /** returns task that, run in any thread, is traced as module nested in modules the calling thread has started now: modules
+   started by the task get their collapsed stacks prefixed with those of the calling thread. Diagnostic context of the calling
+   thread is restored for the time task runs. Returns task itself if there is no trace or diagnostic context to pass */
+   public static Runnable wrap(final Runnable task) {
+      final TraceContext ctx = traceContext();
+      final Context diag = contextSnapshot();
+      if(ctx == null && diag == null)
+         return task;
+      return new Runnable() {
+         public void run() {
+            Context prevDiag = contextSnapshot();
+            contextRestore(diag);
+            TraceContext prev = ctx == null ? null : ctx.enter(task);
+            try { task.run(); }
+            finally {
+               if(ctx != null) ctx.exit(task, prev);
+               contextRestore(prevDiag);
+            }
          }
-         free++;
+      };
+   }
+   /** Callable version of wrap(Runnable) */
+   public static <T> java.util.concurrent.Callable<T> wrap(final java.util.concurrent.Callable<T> task) {
+      final TraceContext ctx = traceContext();
+      final Context diag = contextSnapshot();
+      if(ctx == null && diag == null)
+         return task;
+      return new java.util.concurrent.Callable<T>() {
+         public T call() throws Exception {
+            Context prevDiag = contextSnapshot();
+            contextRestore(diag);
+            TraceContext prev = ctx == null ? null : ctx.enter(task);
+            try { return task.call(); }
+            finally {
+               if(ctx != null) ctx.exit(task, prev);
+               contextRestore(prevDiag);
+            }
+         }
+      };
+   }
+   /** returns executor that wraps every task with wrap(Runnable) at the time it is submitted */
+   public static java.util.concurrent.Executor wrap(final java.util.concurrent.Executor executor) {
+      return new java.util.concurrent.Executor() {
+         public void execute(Runnable task) { executor.execute(wrap(task)); }
+      };
+   }
+   /** trace context captured by traceContext(), restored in thread that runs wrapped task */
+   public static final class TraceContext {
+      /** collapsed stack of modules started when context was captured */
+      final String path;
+      /** true if capturing thread ran sampled trace, so thread running the task does it as well */
+      final boolean sampled;
+      TraceContext(String path, boolean sampled) { this.path = path; this.sampled = sampled; }
+      /** makes context base of the thread's stack and starts module for the task, returns previous state for exit() */
+      TraceContext enter(Object task) {
+         TraceStack stack = _traceStack.get();
+         TraceContext prev = new TraceContext(stack.basePath, stack.sampled);
+         stack.basePath = path;
+         if(sampled)
+            traceSampledStart();
+         String cls = task.getClass().getName();
+         int lambda = cls.indexOf("$$Lambda");
+         String histNm = lambda > 0 ? cls.substring(0, lambda) : cls;
+         traceStart("task"+System.identityHashCode(task), "task", histNm, histNm.substring(histNm.lastIndexOf('.')+1)+".run");
+         return prev;
+      }
+      /** stops module of the task, restores previous state of the thread's stack */
+      void exit(Object task, TraceContext prev) {
+         traceStop("task"+System.identityHashCode(task));
+         if(sampled && !prev.sampled)
+            traceSampledStop();
+         _traceStack.get().basePath = prev.path;
       }
-      if(free>=0) _currIndex--;
    }
-   /** stop timing for all modules, logMessage collected data to a file */
-   public static synchronized void traceClose() {
-      if(_level < TRACE) return;
-      for(int i = _currIndex-1; i >=0; i--){
+   /** stop timing for all modules started by the calling thread, logMessage collected data to a file, append collapsed
+   stacks of the thread to _traceFlameFile if it is set */
+   public static void traceClose() {
+      if(!tracing()) return;
+      TraceStack stack = _traceStack.get();
+      for(int i = stack.size-1; i >=0; i--){
          //System.out.println("traceClose(): closing i="+i);
-         traceStop(_moduleIDArr[i]);
+         traceStop(stack.spans[i].moduleID);
+      }
+      if(_resBlended && stack.blended.len > 0) {//when blended, all results were in the single stream of the thread
+         logMessage(' ', stack.blended.toString(), null);
+         stack.blended.len = 0;
       }
-      if(_resBlended) {//when blended, all results were in the single stream [0]
-         logMessage(' ', _msgArr[0].toString(), null);
+   }
+
+   //---- latency histograms -----------------
+   /** returns latency histogram of module (moduleID, or class name for modules started with traceStart(Object)), creates it if needed */
+   public static Histogram getHistogram(String name) {
+      Histogram h = _histograms.get(name);
+      if(h == null) {
+         Histogram prev = _histograms.putIfAbsent(name, h = new Histogram());
+         if(prev != null) h = prev;
+      }
+      return h;
+   }
+   /** returns latency report of all traced modules: count, mean, p50, p90, p99, p99.9 and max in milliseconds, one line per
+   module sorted by module name. If reset is true, histograms are cleared so next report covers only new measurements. */
+   public static String traceReport(boolean reset) {
+      CharBuf buf = new CharBuf(1024);
+      new TimeStamp().append(buf, System.currentTimeMillis()).append(" trace latency report, ms: count | mean | p50 | p90 | p99 | p99.9 | max | module").append(cr);
+      for(Map.Entry<String,Histogram> entry : new TreeMap<String,Histogram>(_histograms).entrySet()) {
+         Histogram h = entry.getValue();
+         long[] counts = h.snapshot(reset);
+         long count = 0;
+         for(long c : counts) count += c;
+         if(count == 0)
+            continue;
+         long max = h.max(reset); //bucket bound can be above real maximum, so percentiles are capped by it
+         buf.append("   ").appendNum(count);
+         appendMillis(buf, h.sum(reset) / count);
+         appendMillis(buf, Math.min(max, Histogram.percentile(counts, count, 50.0)));
+         appendMillis(buf, Math.min(max, Histogram.percentile(counts, count, 90.0)));
+         appendMillis(buf, Math.min(max, Histogram.percentile(counts, count, 99.0)));
+         appendMillis(buf, Math.min(max, Histogram.percentile(counts, count, 99.9)));
+         appendMillis(buf, max);
+         buf.append(" | ").append(entry.getKey()).append(cr);
+      }
+      return buf.toString();
+   }
+   /** writes traceReport() to _traceReportFile if it is set, otherwise to the log. Clears histograms if _traceReportReset */
+   public static void traceReport() {
+      String report = traceReport(_traceReportReset);
+      if(_traceReportFile != null)
+         Utils.writeFile(report, _traceReportFile, true);
+      else
+         logMessage(' ', report, null);
+   }
+   /** (re)schedules periodic traceReport() as per _traceReportPeriod, called by loadConfig() */
+   private static synchronized void scheduleTraceReport() {
+      if(_traceReportTask != null) {
+         _traceReportTask.cancel();
+         _traceReportTask = null;
+      }
+      if(_traceReportPeriod > 0) {
+         _traceReportTask = new TimerTask() {
+            public void run() {
+               try { traceReport(); } catch(Exception e) { e.printStackTrace(); }
+            }
+         };
+         long period = _traceReportPeriod * 1000L;
+         getTimer().schedule(_traceReportTask, period, period);
+      }
+   }
+   /** returns daemon Timer for Log housekeeping tasks like periodic reports */
+   static synchronized Timer getTimer() {
+      if(_timer == null)
+         _timer = new Timer("izFrame-Log-timer", true);
+      return _timer;
+   }
+   /** appends " | " and duration in milliseconds with 3 decimals, like " | 12.345" */
+   private static void appendMillis(CharBuf buf, long nanos) {
+      long micros = nanos / 1000;
+      buf.append(" | ").appendNum(micros / 1000).append('.').append((int)(micros % 1000), 3);
+   }
+
+   /** fixed size log-linear latency histogram in HDR histogram style: values 0..31 have own bucket, every following power of 2
+   range [2^k, 2^(k+1)), k = 5..62, is split into 16 equal buckets of width 2^(k-4), so value reported for bucket (its highest
+   one) is at most 1/16 (6.25%) above the recorded one. 32 + 58*16 = 960 buckets cover whole range 0..Long.MAX_VALUE
+   nanoseconds (about 292 years). Recording uses only atomic increments: no lock, no allocation. */
+   public static final class Histogram {
+      private static final int SUB_COUNT = 32, HALF = 16, BUCKETS = SUB_COUNT + 58*HALF;
+      private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+      private final AtomicLong sum = new AtomicLong();
+      private final AtomicLong max = new AtomicLong();
+      /** records one value, usually duration in nanoseconds */
+      public void record(long value) {
+         if(value < 0) value = 0;
+         counts.incrementAndGet(index(value));
+         sum.addAndGet(value);
+         long m = max.get();
+         while(value > m && !max.compareAndSet(m, value))
+            m = max.get();
+      }
+      /** returns bucket index of value */
+      static int index(long value) {
+         if(value < SUB_COUNT)
+            return (int)value;
+         int shift = 63 - Long.numberOfLeadingZeros(value) - 4; //keep 5 top bits: 16..31
+         return SUB_COUNT + (shift-1)*HALF + (int)(value >>> shift) - HALF;
+      }
+      /** returns highest value that falls into bucket */
+      static long highestValue(int index) {
+         if(index < SUB_COUNT)
+            return index;
+         int shift = (index - SUB_COUNT)/HALF + 1;
+         long sub = (index - SUB_COUNT)%HALF + HALF;
+         return ((sub + 1) << shift) - 1;
+      }
+      /** returns value at percentile (0..100) of bucket counts that have total count */
+      static long percentile(long[] counts, long count, double percentile) {
+         long target = Math.max(1, (long)Math.ceil(percentile/100.0 * count));
+         long seen = 0;
+         for(int i=0; i<counts.length; i++) {
+            seen += counts[i];
+            if(seen >= target)
+               return highestValue(i);
+         }
+         return highestValue(counts.length-1);
+      }
+      /** returns copy of bucket counts, clears buckets if reset is true */
+      long[] snapshot(boolean reset) {
+         long[] res = new long[BUCKETS];
+         for(int i=0; i<BUCKETS; i++)
+            res[i] = reset ? counts.getAndSet(i, 0) : counts.get(i);
+         return res;
+      }
+      long sum(boolean reset) {
+         return reset ? sum.getAndSet(0) : sum.get();
+      }
+      long max(boolean reset) {
+         return reset ? max.getAndSet(0) : max.get();
       }
    }
 
@@ -813,18 +3642,77 @@ public class Log {
       nm[1] = shortObjNm;
       //System.out.println("exit genName(): nm[0]="+nm[0]+", nm[1]="+nm[1]);
    }
-   /** find if this module already started and return the index of it or -1 */
-   private static int findModuleIndex(String moduleID) {
-      int index = -1;
-      for(int i = 0; i < _currIndex; i++){
-         if(_moduleIDArr[i].equalsIgnoreCase(moduleID)){
-            //System.out.println("i="+i+", moduleID="+moduleID);
-            index = i;
-            break;
-         }
+   /** appends " | " and duration in seconds with 2 decimals, like " | 1.25" */
+   private static void appendSecs(CharBuf buf, long nanos) {
+      long hundredths = nanos / 10000000L;
+      buf.append(" | ").appendNum(hundredths / 100).append('.').append((int)(hundredths % 100), 2);
+   }
+
+   /** timing state of one started module */
+   static final class Span {
+      String moduleID;
+      String moduleName;
+      /** name of latency histogram module's duration is recorded in */
+      String histNm;
+      /** System.nanoTime() of traceStart() and of the last trace() call */
+      long start, curr;
+      /** collapsed stack of the module: frames of enclosing modules (of the thread that handed work over too) and its own */
+      String path;
+      /** module's own frame, last one of path */
+      String frame;
+      /** true if 'E' trace event was written already: enclosing module was stopped first */
+      boolean eventEnded;
+      /** summary duration of modules nested in this one, for self time in collapsed stacks */
+      long childNanos;
+      /** collected timing messages of the module */
+      final CharBuf msg = new CharBuf(512);
+   }
+   /** modules started by one thread, in order they were started. Span objects are reused after traceStop() */
+   static final class TraceStack {
+      Span[] spans = new Span[8];
+      int size;
+      /** step counter for default trace() messages "step N" */
+      int step;
+      /** single stream of messages of all modules when _resBlended is true */
+      final CharBuf blended = new CharBuf(512);
+      /** collapsed stack of modules of the thread that handed work over to this one, null if none */
+      String basePath;
+      /** true while thread runs sampled trace, see traceSampledStart() */
+      boolean sampled;
+      /** self time in nanoseconds by collapsed stack of modules stopped since last writeFlame() */
+      final HashMap<String,long[]> flame = new HashMap<String,long[]>();
+      /** Chrome trace events of the thread not yet written to _traceEventFile */
+      final CharBuf events = new CharBuf(1024);
+      final TimeStamp stamp = new TimeStamp();
+      private DateFormat tf;
+      /** returns index of started module or -1 */
+      int find(String moduleID) {
+         for(int i = size-1; i >= 0; i--)
+            if(spans[i].moduleID.equalsIgnoreCase(moduleID))
+               return i;
+         return -1;
+      }
+      /** adds span at the top of stack */
+      Span push() {
+         if(size == spans.length)
+            spans = Arrays.copyOf(spans, size*2);
+         if(spans[size] == null)
+            spans[size] = new Span();
+         return spans[size++];
+      }
+      /** removes span at index (usually top one), keeps Span object for reuse */
+      void remove(int idx) {
+         Span span = spans[idx];
+         System.arraycopy(spans, idx+1, spans, idx, size-idx-1);
+         spans[--size] = span;
+         span.moduleID = span.moduleName = span.histNm = span.path = span.frame = null;
+      }
+      /** date format used in "started at", "done at" messages */
+      DateFormat timeFormat() {
+         if(tf == null)
+            tf = DateFormat.getTimeInstance(DateFormat.FULL);
+         return tf;
       }
-      //System.out.println("index="+index);
-      return index;
    }
 
    //--------- TEST DRIVER -------------
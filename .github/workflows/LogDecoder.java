@@ -0,0 +1,223 @@
+package izFrame;
+import java.io.*;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+
+/** LogDecoder reads log files written by Log in binary format (Log.format=binary) and turns them back into usual Log text
+format: [timestamp as yy-MM-dd HH:mm:ss.SS] [level] [message source:] [message], followed by exception stack if any.
+<br/><b>Usage</b>: <i>java izFrame.LogDecoder logFile [logFile2 ...]</i> - decoded text goes to System.out. Rotated
+files compressed to .gz are read as well.
+<p>
+Binary file starts with header: "IZLB" magic, format version byte, file creation time (long, millis since 1970). Then
+records follow, each starts with tag byte:
+<ul> <li> 'S' - string definition: id (varint), string. Logger names, thread names and message templates are defined once
+   per file and later referenced by id. When file is appended to after reopening, ids get defined again - the latest
+   definition is the valid one.
+</li><li> 'C' - diagnostic context of the next log record (version 2): mask of set slots (varint, bit 0 - request, 1 - session,
+   2 - user, 3 - use case), then ref of every set slot.
+</li><li> 'R' - log record: time (long), level (byte), logger (ref), thread (ref), template (ref). If template is not null,
+   number of arguments (varint) and argument strings follow, otherwise message string does. Then exception (ref: 0 or
+   1 followed by exception stack string).
+</li></ul>
+Ref is varint: 0 - null, 1 - string follows inline, 2 and more - id of defined string. Varint is 7 bit groups lowest first,
+high bit set on all but last byte. String is varint length of UTF-8 bytes followed by the bytes. Numbers are big-endian.
+</p>
+Programmatic use: create LogDecoder over input stream, call next() while it returns true and read the fields of the record.
+*/
+public class LogDecoder {
+   private final DataInputStream in;
+   /** defined strings by id */
+   private final HashMap<Integer,String> dict = new HashMap<Integer,String>();
+   private final Log.CharBuf text = new Log.CharBuf(512);
+   private final Log.TimeStamp stamp = new Log.TimeStamp();
+   private byte[] strBytes = new byte[256];
+   private String[] args = new String[8];
+   //--- fields of the current record
+   /** file creation time from the header, millis since 1970 */
+   public final long fileCreated;
+   /** record time, millis since 1970 */
+   public long time;
+   /** E, W, I, T, D or ' ' for trace results */
+   public char level;
+   /** logger name (loggedClassName), null for messages of static calls */
+   public String logger;
+   /** name of the thread that logged the message */
+   public String thread;
+   /** message template with {} placeholders, null if message was logged as plain text */
+   public String template;
+   /** number of template arguments */
+   public int argc;
+   /** exception stack text, null if message has no exception */
+   public String exception;
+   /** diagnostic context of the record by slot (Log.CTX_REQUEST, ...), all null if record has no context */
+   public final String[] context = new String[Log.CTX_NAMES.length];
+   /** context read from 'C' record, goes to the next log record */
+   private final String[] nextContext = new String[Log.CTX_NAMES.length];
+   private String msg;
+
+   /** reads file header, throws IOException if stream is not Log binary file */
+   public LogDecoder(InputStream in) throws IOException {
+      this.in = new DataInputStream(in instanceof BufferedInputStream ? in : new BufferedInputStream(in, 65536));
+      byte[] magic = new byte[Log.FileSink.BIN_MAGIC.length];
+      this.in.readFully(magic);
+      if(!Arrays.equals(magic, Log.FileSink.BIN_MAGIC))
+         throw new IOException("not a binary log file");
+      int version = this.in.readUnsignedByte();
+      if(version > Log.FileSink.BIN_VERSION)
+         throw new IOException("unsupported binary log version "+version);
+      fileCreated = this.in.readLong();
+   }
+   /** reads next record, returns false at the end of the file (also when file ends with incomplete record) */
+   public boolean next() throws IOException {
+      try {
+         while(true) {
+            int tag = in.read();
+            if(tag < 0)
+               return false;
+            if(tag == Log.FileSink.BIN_STRING) {
+               int id = readVarint();
+               dict.put(id, readString());
+            }
+            else if(tag == Log.FileSink.BIN_CONTEXT) {
+               int mask = readVarint();
+               for(int i=0; i<32; i++)
+                  if((mask & 1 << i) != 0) {
+                     String val = readRef();
+                     if(i < nextContext.length) nextContext[i] = val; //slots unknown to this version are skipped
+                  }
+            }
+            else if(tag == Log.FileSink.BIN_RECORD) {
+               System.arraycopy(nextContext, 0, context, 0, context.length);
+               Arrays.fill(nextContext, null); //context applies to one record only
+               time = in.readLong();
+               level = (char)in.readUnsignedByte();
+               logger = readRef();
+               thread = readRef();
+               template = readRef();
+               msg = null;
+               if(template != null) {
+                  argc = readVarint();
+                  if(args.length < argc) args = new String[argc];
+                  for(int i=0; i<argc; i++)
+                     args[i] = readString();
+               }
+               else {
+                  argc = 0;
+                  msg = readString();
+               }
+               exception = readRef();
+               return true;
+            }
+            else
+               throw new IOException("corrupted binary log, unknown record tag "+tag);
+         }
+      }
+      catch(EOFException e) {
+         return false;
+      }
+   }
+   /** returns template argument number i of the current record */
+   public String getArg(int i) {
+      return args[i];
+   }
+   /** returns message text of the current record: plain message or template with {} replaced by arguments */
+   public String getMessage() {
+      if(msg == null) {
+         text.len = 0;
+         Log.Event.appendMsg(text, template, null, null, args, argc, null);
+         msg = text.toString();
+      }
+      return msg;
+   }
+   /** returns current record as Log writes it in text format, without line end after message or exception stack */
+   public String toText() {
+      Log.CharBuf buf = text;
+      buf.len = 0;
+      if(level != ' ')
+         stamp.append(buf, time).append(' ').append(level).append(' ');
+      if(logger != null)
+         buf.append(logger).append(": ");
+      int n = 0;
+      for(int i=0; i<context.length; i++)
+         if(context[i] != null)
+            buf.append(n++ == 0 ? "[" : " ").append(Log.CTX_NAMES[i]).append('=').append(context[i]);
+      if(n > 0)
+         buf.append(']').append(' ');
+      if(template != null)
+         Log.Event.appendMsg(buf, template, null, null, args, argc, null);
+      else
+         buf.append(msg);
+      if(exception != null)
+         buf.append(cr).append(exception);
+      return buf.toString();
+   }
+   private String readRef() throws IOException {
+      int ref = readVarint();
+      if(ref == Log.FileSink.REF_NULL)
+         return null;
+      if(ref == Log.FileSink.REF_INLINE)
+         return readString();
+      String res = dict.get(ref);
+      if(res == null)
+         throw new IOException("corrupted binary log, undefined string "+ref);
+      return res;
+   }
+   private int readVarint() throws IOException {
+      int res = 0;
+      for(int shift=0; shift<35; shift+=7) {
+         int b = in.readUnsignedByte();
+         res |= (b & 0x7F) << shift;
+         if((b & 0x80) == 0)
+            return res;
+      }
+      throw new IOException("corrupted binary log, bad varint");
+   }
+   private String readString() throws IOException {
+      int len = readVarint();
+      if(strBytes.length < len) strBytes = new byte[Math.max(len, strBytes.length*2)];
+      in.readFully(strBytes, 0, len);
+      return new String(strBytes, 0, len, "UTF-8");
+   }
+   public void close() throws IOException {
+      in.close();
+   }
+
+   private static final String cr = System.getProperty("line.separator");
+   /** opens log file for reading, .gz files are decompressed */
+   public static InputStream open(String fileNm) throws IOException {
+      InputStream in = new FileInputStream(fileNm);
+      if(fileNm.endsWith(".gz"))
+         in = new GZIPInputStream(in, 65536);
+      return new BufferedInputStream(in, 65536);
+   }
+   /** decodes binary log from in, writes text to out. Returns number of records decoded */
+   public static long decode(InputStream in, Writer out) throws IOException {
+      LogDecoder dec = new LogDecoder(in);
+      long n = 0;
+      while(dec.next()) {
+         out.write(dec.toText());
+         out.write(cr);
+         n++;
+      }
+      return n;
+   }
+   public static void main(String[] args) throws IOException {
+      if(args.length == 0) {
+         System.err.println("Usage: java izFrame.LogDecoder logFile [logFile2 ...]  - prints binary log files as text");
+         System.exit(1);
+      }
+      Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 65536);
+      for(String fileNm : args) {
+         InputStream in = open(fileNm);
+         try {
+            decode(in, out);
+         }
+         catch(IOException e) {
+            out.flush();
+            System.err.println(fileNm+": "+e.getMessage());
+         }
+         finally { in.close(); }
+      }
+      out.flush();
+   }
+}
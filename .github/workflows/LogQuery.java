@@ -0,0 +1,345 @@
+package izFrame;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/** LogQuery prints part of log files: events logged in given time range and/or under given index id (see Log.setIndexId()).
+<br/><b>Usage</b>: <i>java izFrame.LogQuery [-from time] [-to time] [-id indexId] logFile [logFile2 ...]</i> where time is
+<i>yy-MM-dd[ HH[:mm[:ss]]]</i>, -to includes the whole period given (-to "26-10-17 12" ends at 12:59:59.99). Matching events
+go to System.out as they are in the file. Rotated files (.old, .old.gz) are read as well, list them in time order.
+<p>
+When log was written with Log.index=true, file has sidecar index fileNm.idx (rotated along with it) and LogQuery maps it
+to memory, finds byte offsets of the time buckets and id runs asked for and maps only those regions of the log file, so
+querying minute of a 10GB file reads about that minute. Compressed files are decompressed up to the region instead of
+being mapped. Files without index are scanned whole (-id needs index), binary files are always decoded whole with
+LogDecoder. Events of the id still being logged to the current file are indexed when its run ends.
+</p>
+Text log event is a line starting with timestamp plus following lines without one (exception stack), JSON event is one line.
+*/
+public class LogQuery {
+   /** regions of the log file are mapped to memory in chunks of that size */
+   private static final int CHUNK = 64*1024*1024;
+   /** time range as timestamp text prefixes for text files, null if not limited */
+   private final String from, to;
+   /** time range in millis since 1970 for JSON files and index, toEnd is exclusive */
+   private final long fromMs, toEnd;
+   /** index id or null */
+   private final String id;
+   private final OutputStream out;
+   /** true while lines of an event that matched are printed */
+   private boolean printing;
+   private byte[] line = new byte[1024];
+   /** number of events printed */
+   public long matched;
+
+   /** from and to are yy-MM-dd[ HH[:mm[:ss]]] or null, id is index id or null. Throws IllegalArgumentException for bad time */
+   public LogQuery(String from, String to, String id, OutputStream out) {
+      this.from = from; this.to = to; this.id = id; this.out = out;
+      fromMs = from == null ? Long.MIN_VALUE : parseTime(from, false);
+      toEnd = to == null ? Long.MAX_VALUE : parseTime(to, true);
+   }
+   /** returns start of time given as yy-MM-dd[ HH[:mm[:ss]]], or start of the next period if 'end' is true */
+   static long parseTime(String time, boolean end) {
+      String[] patterns = {"yy-MM-dd", "yy-MM-dd HH", "yy-MM-dd HH:mm", "yy-MM-dd HH:mm:ss"};
+      int[] fields = {Calendar.DAY_OF_MONTH, Calendar.HOUR_OF_DAY, Calendar.MINUTE, Calendar.SECOND};
+      for(int i=0; i<patterns.length; i++) {
+         if(time.length() != patterns[i].length())
+            continue;
+         SimpleDateFormat fmt = new SimpleDateFormat(patterns[i]);
+         fmt.setLenient(false);
+         try {
+            Calendar cal = Calendar.getInstance();
+            cal.setTime(fmt.parse(time));
+            if(end)
+               cal.add(fields[i], 1);
+            return cal.getTimeInMillis();
+         }
+         catch(java.text.ParseException e) { break; }
+      }
+      throw new IllegalArgumentException("bad time '"+time+"', expected yy-MM-dd[ HH[:mm[:ss]]]");
+   }
+
+   /** prints matching events of the file, returns number of them */
+   public long query(String fileNm) throws IOException {
+      long before = matched;
+      boolean gz = fileNm.endsWith(".gz");
+      File idxFile = new File((gz ? fileNm.substring(0, fileNm.length()-3) : fileNm)+".idx");
+      byte[] head = new byte[4];
+      InputStream in = LogDecoder.open(fileNm);
+      int n;
+      try { n = in.read(head); }
+      finally { in.close(); }
+      if(n == 4 && Arrays.equals(head, Log.FileSink.BIN_MAGIC))
+         return queryBinary(fileNm);
+      boolean json = n > 0 && head[0] == '{';
+      long[] regions;
+      if(idxFile.exists())
+         regions = readIndex(idxFile);
+      else if(id != null)
+         throw new IOException("no index "+idxFile.getName()+", -id needs index (Log.index=true)");
+      else
+         regions = new long[] {0, Long.MAX_VALUE};
+      if(gz)
+         scanStream(fileNm, regions, json);
+      else
+         scanMapped(fileNm, regions, json);
+      out.flush();
+      return matched - before;
+   }
+
+   /** reads sidecar index, returns file regions {start, end, start, end, ...} to scan, in file order */
+   long[] readIndex(File idxFile) throws IOException {
+      FileChannel ch = new FileInputStream(idxFile).getChannel();
+      try {
+         MappedByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+         byte[] magic = new byte[Log.FileSink.IDX_MAGIC.length];
+         if(b.remaining() < magic.length+1)
+            return new long[] {0, Long.MAX_VALUE}; //header not flushed yet
+         b.get(magic);
+         if(!Arrays.equals(magic, Log.FileSink.IDX_MAGIC) || (b.get() & 0xFF) > Log.FileSink.IDX_VERSION)
+            throw new IOException("not a log index "+idxFile);
+         //time range: from the bucket before the first one starting after fromMs to the bucket following the last one
+         //starting before toEnd. Events of different threads can be written slightly out of time order, bucket record is
+         //written whenever bucket changes, so the range is taken by bucket records order, not by their times.
+         long start = -1, end = Long.MAX_VALUE, first = -1, prevOff = -1;
+         boolean before = false, afterLast = false; //bucket before toEnd was seen / was the last bucket record seen
+         ArrayList<long[]> runs = new ArrayList<long[]>();
+         try {
+            while(b.hasRemaining()) {
+               int tag = b.get();
+               if(tag == Log.FileSink.IDX_TIME) {
+                  long t = b.getLong(), off = b.getLong();
+                  if(first < 0)
+                     first = off;
+                  if(start < 0 && t > fromMs)
+                     start = prevOff < 0 ? off : prevOff;
+                  prevOff = off;
+                  if(t < toEnd) {
+                     before = afterLast = true;
+                     end = Long.MAX_VALUE;
+                  }
+                  else if(afterLast) {
+                     afterLast = false;
+                     end = off;
+                  }
+               }
+               else if(tag == Log.FileSink.IDX_ID) {
+                  int len = readVarint(b);
+                  byte[] bytes = new byte[len];
+                  b.get(bytes);
+                  long runStart = b.getLong(), runEnd = b.getLong();
+                  if(id != null && id.equals(new String(bytes, "UTF-8")))
+                     runs.add(new long[] {runStart, runEnd});
+               }
+               else
+                  break; //broken record
+            }
+         }
+         catch(BufferUnderflowException e) {} //last record is being written
+         if(start < 0) //no bucket starts after fromMs, the last one can hold it
+            start = prevOff < 0 ? 0 : prevOff;
+         if(!before && first >= 0)
+            end = first;
+         if(first > 0 && start == first)
+            start = 0; //file was written without index before, its beginning is not indexed
+         if(id == null)
+            return start < end ? new long[] {start, end} : new long[0];
+         long[] regions = new long[runs.size()*2];
+         int n = 0;
+         for(long[] run : runs) {
+            long s = Math.max(run[0], start), e = Math.min(run[1], end);
+            if(s < e) {
+               regions[n++] = s;
+               regions[n++] = e;
+            }
+         }
+         return Arrays.copyOf(regions, n);
+      }
+      finally { ch.close(); }
+   }
+   private static int readVarint(ByteBuffer b) {
+      int v = 0;
+      for(int shift = 0; ; shift += 7) {
+         int x = b.get();
+         v |= (x & 0x7F) << shift;
+         if((x & 0x80) == 0)
+            return v;
+      }
+   }
+
+   /** maps regions of uncompressed log file to memory chunk by chunk and prints matching events */
+   private void scanMapped(String fileNm, long[] regions, boolean json) throws IOException {
+      FileChannel ch = new FileInputStream(fileNm).getChannel();
+      try {
+         long size = ch.size();
+         for(int r=0; r<regions.length; r+=2) {
+            long pos = regions[r], end = Math.min(regions[r+1], size);
+            printing = false;
+            while(pos < end) {
+               int len = (int)Math.min(CHUNK, end - pos);
+               MappedByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, pos, len);
+               int used = scan(b, json, pos + len == end);
+               if(used == 0) //line longer than chunk
+                  used = scan(ch.map(FileChannel.MapMode.READ_ONLY, pos, (int)Math.min(Integer.MAX_VALUE, end - pos)), json, true);
+               pos += used;
+            }
+         }
+      }
+      finally { ch.close(); }
+   }
+   /** decompresses .gz log file skipping to regions and prints matching events */
+   private void scanStream(String fileNm, long[] regions, boolean json) throws IOException {
+      InputStream in = LogDecoder.open(fileNm);
+      try {
+         byte[] buf = new byte[1024*1024];
+         long pos = 0;
+         for(int r=0; r<regions.length; r+=2) {
+            while(pos < regions[r]) {
+               long n = in.skip(regions[r] - pos);
+               if(n <= 0)
+                  return;
+               pos += n;
+            }
+            printing = false;
+            int len = 0;
+            boolean eof = false;
+            while(!eof && pos < regions[r+1]) {
+               if(len == buf.length)
+                  buf = Arrays.copyOf(buf, buf.length*2);
+               int n = in.read(buf, len, (int)Math.min(buf.length - len, regions[r+1] - pos));
+               if(n < 0)
+                  eof = true;
+               else {
+                  len += n;
+                  pos += n;
+               }
+               boolean last = eof || pos >= regions[r+1];
+               int used = scan(ByteBuffer.wrap(buf, 0, len), json, last);
+               System.arraycopy(buf, used, buf, 0, len - used);
+               len -= used;
+            }
+         }
+      }
+      finally { in.close(); }
+   }
+
+   /** prints matching lines of b, returns number of bytes consumed: all complete lines, everything if 'last' is true */
+   int scan(ByteBuffer b, boolean json, boolean last) throws IOException {
+      int start = b.position(), limit = b.limit(), lineStart = start;
+      for(int i=start; i<limit; i++) {
+         if(b.get(i) == '\n' || (last && i == limit-1)) {
+            line(b, lineStart, i+1, json);
+            lineStart = i+1;
+         }
+      }
+      return lineStart - start;
+   }
+   /** prints line from..to of b if its event matches */
+   private void line(ByteBuffer b, int from, int to, boolean json) throws IOException {
+      int len = to - from;
+      if(line.length < len)
+         line = new byte[Math.max(len, line.length*2)];
+      for(int i=0; i<len; i++)
+         line[i] = b.get(from+i);
+      boolean first = json || isStamp(line, len); //continuation line of text event keeps state of its first line
+      if(first)
+         printing = json ? inRange(jsonTime(line, len)) : inRange(line);
+      if(printing) {
+         out.write(line, 0, len);
+         if(first)
+            matched++;
+      }
+   }
+   /** true if line starts with "yy-MM-dd HH:mm:ss.SS" */
+   private static boolean isStamp(byte[] l, int len) {
+      if(len < 20)
+         return false;
+      for(int i=0; i<20; i++) {
+         byte c = l[i];
+         boolean ok = i == 2 || i == 5 ? c == '-' : i == 8 ? c == ' ' : i == 11 || i == 14 ? c == ':' : i == 17 ? c == '.' : c >= '0' && c <= '9';
+         if(!ok)
+            return false;
+      }
+      return true;
+   }
+   /** compares timestamp at the line start with from and to prefixes */
+   private boolean inRange(byte[] l) {
+      return (from == null || compare(l, from, from.length()) >= 0) && (to == null || compare(l, to, to.length()) <= 0);
+   }
+   private static int compare(byte[] l, String s, int len) {
+      for(int i=0; i<len; i++)
+         if(l[i] != s.charAt(i))
+            return l[i] - s.charAt(i);
+      return 0;
+   }
+   private boolean inRange(long time) {
+      return time >= fromMs && time < toEnd;
+   }
+   /** returns ts of {"ts":1234567890123,... line, Long.MIN_VALUE if line is not like that */
+   private static long jsonTime(byte[] l, int len) {
+      if(len < 7 || l[0] != '{' || l[1] != '"' || l[2] != 't' || l[3] != 's' || l[4] != '"' || l[5] != ':')
+         return Long.MIN_VALUE;
+      long t = 0;
+      for(int i=6; i<len && l[i] >= '0' && l[i] <= '9'; i++)
+         t = t*10 + (l[i] - '0');
+      return t;
+   }
+
+   /** binary files cannot be read from the middle (strings are defined once), records are decoded and filtered by time */
+   private long queryBinary(String fileNm) throws IOException {
+      if(id != null)
+         throw new IOException("binary log is not indexed, -id cannot be used");
+      long before = matched;
+      String cr = System.getProperty("line.separator");
+      Writer w = new OutputStreamWriter(out);
+      LogDecoder dec = new LogDecoder(LogDecoder.open(fileNm));
+      try {
+         while(dec.next())
+            if(inRange(dec.time)) {
+               w.write(dec.toText());
+               w.write(cr);
+               matched++;
+            }
+      }
+      finally { dec.close(); }
+      w.flush();
+      return matched - before;
+   }
+
+   public static void main(String[] args) throws IOException {
+      String from = null, to = null, id = null;
+      int i = 0;
+      for(; i < args.length-1 && args[i].startsWith("-"); i+=2) {
+         if("-from".equals(args[i]))    from = args[i+1];
+         else if("-to".equals(args[i])) to = args[i+1];
+         else if("-id".equals(args[i])) id = args[i+1];
+         else break;
+      }
+      if(i >= args.length || args[i].startsWith("-")) {
+         System.err.println("Usage: java izFrame.LogQuery [-from time] [-to time] [-id indexId] logFile [logFile2 ...]");
+         System.err.println("   time is yy-MM-dd[ HH[:mm[:ss]]], prints events of the time range and/or index id");
+         System.exit(1);
+      }
+      LogQuery q;
+      try { q = new LogQuery(from, to, id, new BufferedOutputStream(System.out, 65536)); }
+      catch(IllegalArgumentException e) {
+         System.err.println(e.getMessage());
+         System.exit(1);
+         return;
+      }
+      for(; i<args.length; i++) {
+         try {
+            q.query(args[i]);
+         }
+         catch(IOException e) {
+            q.out.flush();
+            System.err.println(args[i]+": "+e.getMessage());
+         }
+      }
+      q.out.flush();
+   }
+}
@@ -0,0 +1,481 @@
+package izFrame;
+import java.io.*;
+import java.net.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/** LogSocketAppender streams log events to a local collector over TCP or Unix domain socket, so logs can be shipped without
+tailing (and reading again) log files. Plugs in as any other appender:
+<br/><i>Log.appender@com.ibm=izFrame.LogSocketAppender</i>
+<ul> <li> logMessage() only puts event into bounded lock-free ring (Log.EventRing) and returns - logging thread never waits
+   on socket. When ring is full, event is dropped and counted, number of dropped events is sent as warning later.
+</li><li> single sender thread drains the ring into batches (up to <i>batchSize</i> events or <i>batchBytes</i>, waiting at most
+   <i>lingerMillis</i> for batch to fill) and writes each batch as frame: length (4 bytes, big-endian) followed by that many
+   bytes of UTF-8 JSON lines, one event per line with fields ts, level, logger, thread, ctx, msg, exception - same as
+   JSON log file (Log.format=json).
+</li><li> with <i>ack=true</i> collector answers every frame with one byte, so frame is known to be delivered. Slow collector
+   then holds the sender back and ring fills up (backpressure ends in counted drops, not in blocked callers). Without ack
+   frames written just before connection broke can be lost. Collector that does not take or acknowledge frame within
+   <i>timeoutMillis</i> is disconnected, over TCP and Unix socket alike, and frames go to spill file.
+</li><li> when collector can't be reached, frames go to <i>spillFile</i> (same frame format, up to <i>maxSpillSize</i>), connect
+   is retried with exponential backoff from <i>reconnectMinMillis</i> to <i>reconnectMaxMillis</i>. After reconnect spilled
+   frames are sent first, in order, then the live ones.
+</li><li> <i>unixSocket=/path</i> connects to Unix domain socket instead of host:port, needs Java 16+ (found by reflection, so class
+   still runs on older Java with TCP).
+</li><li> <i>consume=true</i> makes appender consume messages: they are not written to log file and console anymore.
+</li></ul>
+Options are read from izFrame.config at class load time with 'LogSocketAppender.' prefix, like LogSocketAppender.port=5170.
+main() is test driver: runs stand-in collector, stops it to show spilling and starts it again to show replay.
+*/
+public class LogSocketAppender extends Thread implements Log.Appender {
+   //--- CONFIGURATION OPTIONS ---
+   /** collector host and TCP port, default localhost:5170 */
+   public static String host = "localhost";
+   public static int port = 5170;
+   /** path of Unix domain socket of collector, default null - TCP is used */
+   public static String unixSocket = null;
+   /** size of event ring (rounded up to the power of 2), default 8192 */
+   public static int queueSize = 8192;
+   /** max number of events and bytes in one frame, default 512 events, 256K */
+   public static int batchSize = 512;
+   public static int batchBytes = 256*1024;
+   /** max time in ms sender waits for batch to fill, default 200 */
+   public static int lingerMillis = 200;
+   /** if true, collector acknowledges every frame with one byte. Default false */
+   public static boolean ack = false;
+   /** time in ms to wait for connect and for frame to be written and acknowledged, default 5000 */
+   public static int timeoutMillis = 5000;
+   /** reconnect backoff range in ms, default 100 - 30000 */
+   public static int reconnectMinMillis = 100;
+   public static int reconnectMaxMillis = 30000;
+   /** file frames go to while collector is down, default "../logs/izApp.spill" */
+   public static String spillFile = "../logs/izApp.spill";
+   /** max size of spill file, frames that don't fit are dropped. Default 64MB */
+   public static long maxSpillSize = 64L*1024*1024;
+   /** if true, logMessage() returns true, so messages are not written to log file and console. Default false */
+   public static boolean consume = false;
+
+   static { loadConfig(null); }
+   /** reads LogSocketAppender.* options from property file, izFrame.config if null is passed in */
+   public static void loadConfig(String propFileNm) {
+      if(propFileNm==null)
+         propFileNm = "izFrame.config";
+      Properties props = new Properties();
+      try {
+         FileInputStream fis = new FileInputStream(new File(propFileNm));
+         props.load(fis);
+         fis.close();
+      }
+      catch(IOException e) { return; } //defaults are used
+      host       = props.getProperty("LogSocketAppender.host", host);
+      try {port = Integer.parseInt(props.getProperty("LogSocketAppender.port", ""+port));} catch(Exception e){}
+      unixSocket = props.getProperty("LogSocketAppender.unixSocket", unixSocket);
+      try {queueSize = Integer.parseInt(props.getProperty("LogSocketAppender.queueSize", ""+queueSize));} catch(Exception e){}
+      try {batchSize = Integer.parseInt(props.getProperty("LogSocketAppender.batchSize", ""+batchSize));} catch(Exception e){}
+      batchBytes = (int)Log.parseSize(props.getProperty("LogSocketAppender.batchBytes"), batchBytes);
+      try {lingerMillis = Integer.parseInt(props.getProperty("LogSocketAppender.lingerMillis", ""+lingerMillis));} catch(Exception e){}
+      ack     = "true".equals(props.getProperty("LogSocketAppender.ack",     ""+ack))     ?true:false;
+      try {timeoutMillis = Integer.parseInt(props.getProperty("LogSocketAppender.timeoutMillis", ""+timeoutMillis));} catch(Exception e){}
+      try {reconnectMinMillis = Integer.parseInt(props.getProperty("LogSocketAppender.reconnectMinMillis", ""+reconnectMinMillis));} catch(Exception e){}
+      try {reconnectMaxMillis = Integer.parseInt(props.getProperty("LogSocketAppender.reconnectMaxMillis", ""+reconnectMaxMillis));} catch(Exception e){}
+      spillFile  = props.getProperty("LogSocketAppender.spillFile", spillFile);
+      maxSpillSize = Log.parseSize(props.getProperty("LogSocketAppender.maxSpillSize"), maxSpillSize);
+      consume = "true".equals(props.getProperty("LogSocketAppender.consume", ""+consume)) ?true:false;
+   }
+
+   //--- state ---
+   private final Log.EventRing ring;
+   /** frame being assembled: JSON lines of the batch */
+   private final Log.CharBuf batch = new Log.CharBuf(8192);
+   private OutputStream out;
+   private InputStream in;
+   private Closeable conn;
+   /** timer of Log, closes connection whose frame is not written and acknowledged in time */
+   private final Timer timer = Log.getTimer();
+   /** earliest time of next connect attempt and current backoff */
+   private long connectAt;
+   private long backoff;
+   private volatile boolean sleeping, stopping;
+   private final AtomicLong sentCount = new AtomicLong(), droppedCount = new AtomicLong(), spilledCount = new AtomicLong();
+   /** dropped events already reported to collector */
+   private long droppedReported;
+
+   /** creates appender with options of LogSocketAppender static members and starts its sender thread */
+   public LogSocketAppender() {
+      super("izFrame-LogSocketAppender");
+      setDaemon(true);
+      ring = new Log.EventRing(queueSize);
+      start();
+   }
+   /** number of events written to collector (including replayed from spill file) */
+   public long getSentCount() { return sentCount.get(); }
+   /** number of events dropped because ring was full or spill file reached maxSpillSize */
+   public long getDroppedCount() { return droppedCount.get(); }
+   /** number of events written to spill file */
+   public long getSpilledCount() { return spilledCount.get(); }
+
+   /** queues event for the sender thread, never waits. Returns value of 'consume' option */
+   public boolean logMessage(char level, String loggedClassName, String msg, Exception e) {
+      long pos = stopping ? -1 : ring.tryClaim();
+      if(pos < 0) {
+         droppedCount.incrementAndGet();
+         return consume;
+      }
+      //message is already formatted, loggedClassName goes to a0 as Event has no field for it; set() keeps diagnostic context
+      ring.slot(pos).set(null, level, msg, loggedClassName, null, null, -1, null, e, System.currentTimeMillis());
+      ring.publish(pos);
+      if(sleeping)
+         LockSupport.unpark(this);
+      return consume;
+   }
+   /** waits (up to timeoutMillis) until queued events are sent or spilled */
+   public void flush() {
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      while(ring.size() > 0 && System.currentTimeMillis() < deadline) {
+         LockSupport.unpark(this);
+         LockSupport.parkNanos(1000000L);
+      }
+   }
+   /** sends queued events and stops sender thread, following events are dropped */
+   public void close() {
+      stopping = true;
+      LockSupport.unpark(this);
+      try { join(timeoutMillis); } catch(InterruptedException e) {}
+   }
+
+   public void run() {
+      int events = 0;
+      long batchStart = 0;
+      while(true) {
+         Log.Event ev = ring.peek();
+         if(ev != null) {
+            if(events == 0)
+               batchStart = System.currentTimeMillis();
+            appendEvent(ev.time, ev.level, (String)ev.a0, ev.thread, ev.ctx, ev.msg, ev.e);
+            ring.release();
+            events++;
+            if(events < batchSize && batch.len < batchBytes)
+               continue;
+         }
+         else if(events == 0) {
+            if(stopping)
+               break;
+            reportDropped();
+            sleeping = true;
+            if(ring.peek() == null)
+               LockSupport.parkNanos(this, 50000000L); //50ms, producers unpark us earlier
+            sleeping = false;
+            continue;
+         }
+         else if(!stopping && System.currentTimeMillis() - batchStart < lingerMillis) { //let batch fill
+            sleeping = true;
+            if(ring.peek() == null)
+               LockSupport.parkNanos(this, 1000000L);
+            sleeping = false;
+            continue;
+         }
+         send(frame(), events);
+         batch.len = 0;
+         events = 0;
+      }
+      disconnect();
+   }
+   /** sends warning with number of events dropped since last report */
+   private void reportDropped() {
+      long dropped = droppedCount.get();
+      if(dropped == droppedReported)
+         return;
+      appendEvent(System.currentTimeMillis(), 'W', getClass().getName(), Thread.currentThread(), null,
+            (dropped - droppedReported)+" events were dropped: appender queue was full or spill file reached maxSpillSize", null);
+      droppedReported = dropped;
+      send(frame(), 0);
+      batch.len = 0;
+   }
+   /** appends event to batch as JSON line */
+   private void appendEvent(long time, char level, String logger, Thread thread, Log.Context ctx, String msg, Exception e) {
+      Log.CharBuf b = batch;
+      b.append("{\"ts\":").appendNum(time).append(",\"level\":\"").append(level).append("\",\"logger\":");
+      Log.FileSink.appendJson(b, logger);
+      b.append(",\"thread\":");
+      Log.FileSink.appendJson(b, thread == null ? null : thread.getName());
+      if(ctx != null && ctx.mask != 0) {
+         b.append(",\"ctx\":{");
+         for(int i = 0, n = 0; i < Log.CTX_NAMES.length; i++)
+            if(ctx.values[i] != null) {
+               b.append(n++ == 0 ? "\"" : ",\"").append(Log.CTX_NAMES[i]).append("\":");
+               Log.FileSink.appendJson(b, ctx.values[i]);
+            }
+         b.append('}');
+      }
+      b.append(",\"msg\":");
+      Log.FileSink.appendJson(b, msg);
+      b.append(",\"exception\":");
+      Log.FileSink.appendJson(b, e == null ? null : Log.buildStackText(e));
+      b.append('}').append('\n');
+   }
+   /** returns batch as frame: length prefix and UTF-8 bytes */
+   private byte[] frame() {
+      byte[] body;
+      try { body = new String(batch.chars, 0, batch.len).getBytes("UTF-8"); }
+      catch(UnsupportedEncodingException e) { throw new RuntimeException(e); }
+      byte[] frame = new byte[body.length + 4];
+      frame[0] = (byte)(body.length >>> 24); frame[1] = (byte)(body.length >>> 16);
+      frame[2] = (byte)(body.length >>> 8);  frame[3] = (byte)body.length;
+      System.arraycopy(body, 0, frame, 4, body.length);
+      return frame;
+   }
+
+   //--- connection and spill file ---
+   /** writes frame of 'events' events to collector, to spill file if collector can't be reached */
+   private void send(byte[] frame, int events) {
+      if(out == null && System.currentTimeMillis() >= connectAt && connect() && !replaySpill())
+         disconnect(); //spill replay failed, frame goes after spilled ones
+      if(out != null) {
+         try {
+            writeFrame(frame, 0, frame.length);
+            sentCount.addAndGet(events);
+            return;
+         }
+         catch(IOException e) {
+            System.out.println("\tLogSocketAppender: collector connection lost, spilling to "+spillFile+": "+e.getMessage());
+            disconnect();
+         }
+      }
+      spill(frame, events);
+   }
+   /** writes frame, waits for ack if it is on. Socket timeout covers neither writes nor reads of Unix socket channel, so
+   connection is closed by timer task when it takes more than timeoutMillis, that ends blocked write or read with exception */
+   private void writeFrame(byte[] buf, int off, int len) throws IOException {
+      final Closeable c = conn;
+      TimerTask watchdog = new TimerTask() {
+         public void run() {
+            try { c.close(); } catch(IOException e) {}
+         }
+      };
+      if(timeoutMillis > 0)
+         timer.schedule(watchdog, timeoutMillis);
+      try {
+         out.write(buf, off, len);
+         out.flush();
+         if(ack && in.read() < 0)
+            throw new EOFException("collector closed connection");
+      }
+      catch(IOException e) {
+         if(timeoutMillis > 0 && !watchdog.cancel()) //task ran: connection was closed by timeout
+            throw new SocketTimeoutException("collector did not take frame in "+timeoutMillis+"ms");
+         throw e;
+      }
+      finally {
+         watchdog.cancel();
+      }
+   }
+   /** connects to collector, schedules next attempt with doubled backoff if it fails */
+   private boolean connect() {
+      try {
+         if(unixSocket != null) {
+            SocketChannel ch = openUnixSocket(unixSocket);
+            conn = ch;
+            out = new BufferedOutputStream(Channels.newOutputStream(ch), 65536);
+            in = Channels.newInputStream(ch);
+         }
+         else {
+            Socket s = new Socket();
+            conn = s;
+            s.connect(new InetSocketAddress(host, port), timeoutMillis);
+            s.setSoTimeout(timeoutMillis);
+            s.setTcpNoDelay(true);
+            out = new BufferedOutputStream(s.getOutputStream(), 65536);
+            in = s.getInputStream();
+         }
+         backoff = 0;
+         return true;
+      }
+      catch(IOException e) {
+         disconnect();
+         backoff = backoff == 0 ? reconnectMinMillis : Math.min(backoff * 2, reconnectMaxMillis);
+         connectAt = System.currentTimeMillis() + backoff;
+         return false;
+      }
+   }
+   private void disconnect() {
+      if(conn != null)
+         try { conn.close(); } catch(IOException e) {}
+      conn = null;
+      out = null;
+      in = null;
+   }
+   /** opens Unix domain socket channel through reflection, as UnixDomainSocketAddress and SocketChannel.open(ProtocolFamily)
+   appeared in Java 16 */
+   private static SocketChannel openUnixSocket(String path) throws IOException {
+      SocketAddress addr;
+      SocketChannel ch;
+      try {
+         addr = (SocketAddress)Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class).invoke(null, path);
+         ProtocolFamily unix = (ProtocolFamily)Enum.valueOf(StandardProtocolFamily.class, "UNIX");
+         ch = (SocketChannel)SocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+      }
+      catch(java.lang.reflect.InvocationTargetException e) {
+         throw e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause());
+      }
+      catch(Exception e) { //ReflectiveOperationException, IllegalArgumentException
+         throw new IOException("Unix domain socket needs Java 16 or later: "+e);
+      }
+      try { ch.connect(addr); }
+      catch(IOException e) { ch.close(); throw e; }
+      return ch;
+   }
+   /** appends frame to spill file, drops it if file would exceed maxSpillSize */
+   private void spill(byte[] frame, int events) {
+      File file = new File(spillFile);
+      if(file.length() + frame.length > maxSpillSize) {
+         droppedCount.addAndGet(events);
+         return;
+      }
+      try {
+         File dir = file.getAbsoluteFile().getParentFile();
+         if(!dir.exists())
+            dir.mkdirs();
+         FileOutputStream fos = new FileOutputStream(file, true);
+         try { fos.write(frame); }
+         finally { fos.close(); }
+         spilledCount.addAndGet(events);
+      }
+      catch(IOException e) {
+         droppedCount.addAndGet(events);
+         System.out.println("\tLogSocketAppender: cannot write spill file "+spillFile+": "+e.getMessage());
+      }
+   }
+   /** sends frames of spill file to collector in order, deletes file when all are sent. If sending fails, frames not sent
+   are kept in the file. Returns false on failure */
+   private boolean replaySpill() {
+      File file = new File(spillFile);
+      if(!file.exists() || file.length() == 0)
+         return true;
+      long pos = 0;
+      try {
+         DataInputStream fis = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+         try {
+            byte[] buf = new byte[4096];
+            long size = file.length();
+            while(pos + 4 <= size) {
+               int len = fis.readInt();
+               if(pos + 4 + len > size) //incomplete frame at the end of file
+                  break;
+               if(buf.length < len + 4) buf = new byte[len + 4];
+               buf[0] = (byte)(len >>> 24); buf[1] = (byte)(len >>> 16); buf[2] = (byte)(len >>> 8); buf[3] = (byte)len;
+               fis.readFully(buf, 4, len);
+               writeFrame(buf, 0, len + 4);
+               sentCount.addAndGet(countLines(buf, 4, len));
+               pos += 4 + len;
+            }
+         }
+         finally { fis.close(); }
+         file.delete();
+         return true;
+      }
+      catch(IOException e) {
+         System.out.println("\tLogSocketAppender: collector connection lost while sending spill file: "+e.getMessage());
+         if(pos > 0)
+            keepSpillTail(file, pos);
+         return false;
+      }
+   }
+   /** removes first 'pos' bytes (frames already sent) of spill file */
+   private static void keepSpillTail(File file, long pos) {
+      File tmp = new File(file.getPath()+".tmp");
+      try {
+         FileChannel src = new FileInputStream(file).getChannel();
+         FileChannel dst = new FileOutputStream(tmp).getChannel();
+         try {
+            for(long n = src.size() - pos, done = 0; done < n; )
+               done += src.transferTo(pos + done, n - done, dst);
+         }
+         finally { src.close(); dst.close(); }
+         if(!file.delete() || !tmp.renameTo(file))
+            System.out.println("\tLogSocketAppender: cannot replace spill file "+file);
+      }
+      catch(IOException e) { System.out.println("\tLogSocketAppender: cannot trim spill file "+file+": "+e.getMessage()); }
+   }
+   private static int countLines(byte[] buf, int off, int len) {
+      int n = 0;
+      for(int i = off; i < off + len; i++)
+         if(buf[i] == '\n') n++;
+      return n;
+   }
+
+   //--------- TEST DRIVER -------------
+   /** main() is a test driver: stand-in collector counts received events, is stopped while events are logged (they are
+   spilled) and started again (spilled events are replayed) */
+   public static void main(String[] a) throws Exception {
+      port = 0;
+      ack = true;
+      reconnectMaxMillis = 200;
+      spillFile = File.createTempFile("izLogSpill", ".spill").getPath();
+      new File(spillFile).delete();
+      final AtomicLong received = new AtomicLong();
+      Collector collector = new Collector(new ServerSocket(0), received);
+      port = collector.server.getLocalPort();
+      LogSocketAppender app = new LogSocketAppender();
+      Log.setContext(Log.CTX_REQUEST, "test-1");
+      for(int i = 0; i < 1000; i++)
+         app.logMessage('I', "izFrame.LogSocketAppender", "event "+i, null);
+      app.flush();
+      Thread.sleep(500);
+      System.out.println("collector up:   logged 1000, sent "+app.getSentCount()+", received "+received.get());
+      collector.shutdown();
+      for(int i = 1000; i < 1500; i++)
+         app.logMessage('W', "izFrame.LogSocketAppender", "event "+i, i % 100 == 0 ? new Exception("test") : null);
+      app.flush();
+      Thread.sleep(500);
+      System.out.println("collector down: logged 500, spilled "+app.getSpilledCount()+", spill file "+new File(spillFile).length()+" bytes");
+      collector = new Collector(new ServerSocket(port), received);
+      Thread.sleep(500);
+      for(int i = 1500; i < 1510; i++)
+         app.logMessage('I', "izFrame.LogSocketAppender", "event "+i, null);
+      app.close();
+      Thread.sleep(200);
+      System.out.println("collector up:   logged 10, sent "+app.getSentCount()+", received "+received.get()+", dropped "
+            +app.getDroppedCount()+", spill file exists "+new File(spillFile).exists());
+      collector.shutdown();
+   }
+   /** stand-in collector of main(): reads frames, counts events, acknowledges every frame */
+   private static final class Collector extends Thread {
+      final ServerSocket server;
+      final AtomicLong received;
+      private volatile Socket socket;
+      Collector(ServerSocket server, AtomicLong received) {
+         this.server = server;
+         this.received = received;
+         setDaemon(true);
+         start();
+      }
+      public void run() {
+         try {
+            while(true) {
+               socket = server.accept();
+               DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+               OutputStream out = socket.getOutputStream();
+               try {
+                  while(true) {
+                     byte[] body = new byte[in.readInt()];
+                     in.readFully(body);
+                     received.addAndGet(countLines(body, 0, body.length));
+                     out.write(1);
+                  }
+               }
+               catch(IOException e) { socket.close(); } //sender disconnected, wait for next one
+            }
+         }
+         catch(IOException e) {} //server socket closed
+      }
+      void shutdown() throws IOException {
+         server.close();
+         if(socket != null)
+            socket.close();
+      }
+   }
+}
@@ -91,6 +91,19 @@ public class Web extends HttpServlet {
    from page to page in specific sequence hence use of 'Back' button and other way of circumventing page order is prohibited.
    If proper order (sequence) is circumvented, service() will redirect user to a special error page. Default true.*/
    public static boolean checkSequenceID = true;
+   /** request tracing: 1 in traceSampleRate requests (chosen at random) gets module timing through Web, UseCase and DBservice
+   whatever log level is, other requests pay random draw (and header lookup with traceForceParam). Default 0 - every request is traced when log level is TRACE, none otherwise */
+   public static int traceSampleRate = 0;
+   /** max number of traced requests per second, forced ones included, default 0 - no limit */
+   public static int traceMaxPerSec = 0;
+   /** name of request header that forces tracing of the request (like izTrace: 1). Request parameters are not looked at, as
+   that would read body of POST request before use case does. Default null - tracing can't be forced */
+   public static String traceForceParam = null;
+   /** sampler made of traceSampleRate and traceMaxPerSec */
+   protected static Log.TraceSampler traceSampler = new Log.TraceSampler(traceSampleRate, traceMaxPerSec);
+   /** generated request ids (diagnostic context of Log) are prefix of servlet start time and sequence number, both base 36 */
+   private static final String requestIdPrefix = Long.toString(System.currentTimeMillis(), 36)+"-";
+   private static final java.util.concurrent.atomic.AtomicLong requestSeq = new java.util.concurrent.atomic.AtomicLong();
 
    //---- storage members ----
    /** properties that store list of pages that are under control for right sequence */
@@ -113,7 +126,8 @@ public class Web extends HttpServlet {
    <br> If you prefer properties separation, you can create separate Web properties file and specify it in web.xml under servlet
    param-name izFrameWebProps and it will be used for Web initialisation instead of izFrameProps.
    <br> The following Web class members can be initialized: APP_TITLE WEB_PATH APP_FRAME_PAGE APP_ERROR_PAGE
-   APP_WELCOME_PAGE APP_LOGIN_PAGE SEQ_PAGES_FILE APP_MSG_RESOURCE useFramingPage logRequest logRequestHeaders checkSequenceID.
+   APP_WELCOME_PAGE APP_LOGIN_PAGE SEQ_PAGES_FILE APP_MSG_RESOURCE useFramingPage logRequest logRequestHeaders checkSequenceID
+   traceSampleRate traceMaxPerSec traceForceParam.
    Entries in property file must have name that is the same as member name prefixed with "Web.". */
    public void init(){
       String izFrameProps = getServletContext().getInitParameter("izFrameProps");
@@ -153,6 +167,10 @@ public class Web extends HttpServlet {
          logRequestHeaders= "true".equals(props.getProperty("Web.logRequestHeaders",""+logRequestHeaders))?true:false;
          checkSequenceID  = "true".equals(props.getProperty("Web.checkSequenceID",  ""+checkSequenceID))  ?true:false;
          useFramingPage   = "true".equals(props.getProperty("Web.useFramingPage",   ""+useFramingPage))   ?true:false;
+         try {traceSampleRate = Integer.parseInt(props.getProperty("Web.traceSampleRate", ""+traceSampleRate));} catch(Exception e){}
+         try {traceMaxPerSec  = Integer.parseInt(props.getProperty("Web.traceMaxPerSec",  ""+traceMaxPerSec));}  catch(Exception e){}
+         traceForceParam   = props.getProperty("Web.traceForceParam", traceForceParam);
+         traceSampler = new Log.TraceSampler(traceSampleRate, traceMaxPerSec);
          if(checkSequenceID){
             SEQ_PAGES_FILE = getServletContext().getRealPath(SEQ_PAGES_FILE);
             if(SEQ_PAGES_FILE!=null && new File(SEQ_PAGES_FILE).exists()) {
@@ -171,7 +189,9 @@ public class Web extends HttpServlet {
    }
 
    /** function is called each time reguest is issued. Does the following:
-   <ul> <li> calls logRequest()
+   <ul> <li> fills diagnostic context of Log (request id - X-Request-ID header or generated one, session id), so every message
+      logged while serving the request names it; gotoUseCase() adds use case name and user id
+   </li><li> decides if request is traced (see traceSampleRate), calls logRequest()
    </li><li> if (checkSequenceID==true), verifies pages are processed in sequence (calls isValidSequenceID())
    </li><li> calls passAdditionalChecks() to allow derived class to do extra checking - returns on false
    </li><li> calls gotoUseCase(String useCaseName. ...) that loads and calls UseCase derived class specified in form's
@@ -182,7 +202,17 @@ public class Web extends HttpServlet {
    </li></ul> */
    protected void service(HttpServletRequest req, HttpServletResponse res)
     throws ServletException, IOException {
-      Log.traceStart(this);
+      Log.clearRecorder(); //flight recorder should show only this request's history
+      String requestId = req.getHeader("X-Request-ID");
+      Log.setContext(Log.CTX_REQUEST, requestId != null ? requestId : requestIdPrefix+Long.toString(requestSeq.incrementAndGet(), 36));
+      HttpSession session = req.getSession(false);
+      Log.setContext(Log.CTX_SESSION, session == null ? null : session.getId());
+      boolean traced = traceSampler.sample()
+            || (traceForceParam != null && req.getHeader(traceForceParam) != null && traceSampler.admit());
+      if(traced) {
+         Log.traceSampledStart();
+         Log.traceStart(this);
+      }
       //log request parameters, attributes, cookies - can be very useful in debugging
       if(logRequest)
          logRequest(req, logRequestHeaders);
@@ -205,10 +235,16 @@ public class Web extends HttpServlet {
          gotoUseCase(useCaseName, getDataBean(req), req, res);
       }
       catch(Exception e){
-         log.error(e, "Web.service(): exception processing "+req.getServletPath());
+         log.error(e, "Web.service(): exception processing {}", req.getServletPath());
          showSystemErrorPage(e, req, res); //tries to show APP_ERROR_PAGE, or, if no such, generates HTML
       }
-      Log.traceStop(this);
+      finally {
+         if(traced) {
+            Log.traceStop(this);
+            Log.traceSampledStop();
+         }
+         Log.clearContext(); //thread goes back to the pool
+      }
    }
    /** instantiates requested UseCase class instance and calls its passSecurity(), doBeanFromRequest(), execute() methods.
    If useCaseName parameter does not start with string "usecase.", it will be prefixed with "usecase.".
@@ -221,7 +257,7 @@ public class Web extends HttpServlet {
       UseCase useCase = null;
       try {
          if(useCaseClass == null) {
-            log.debug("Loading UseCase "+useCaseName);
+            log.debug("Loading UseCase {}", useCaseName);
             useCaseClass = Class.forName(useCaseName);
             _loadedUseCaseClasses.put(useCaseName, useCaseClass);
          }
@@ -248,8 +284,10 @@ public class Web extends HttpServlet {
          useCase = new UseCase();
       }
       setDataBean(bo, req);
+      Log.setContext(Log.CTX_USECASE, useCaseName.substring(useCaseName.lastIndexOf('.')+1));
       if(!useCase.passSecurity(this, req, res))
          return;
+      Log.setContext(Log.CTX_USER, useCase.getUserID(req)); //known after passSecurity() logged user in
       WebBean data = useCase.doBeanFromRequest(req);
       String reqPageNm = getRequestingPage(req);
       if(reqPageNm==null && data!=null) //reqPageNm==null can happen for multipart requests even if param was present
@@ -258,7 +296,11 @@ public class Web extends HttpServlet {
       String referingUseCase = useCase.getReferingUseCase(req);
       if(useCaseName.equals(referingUseCase))
               isInit = false;
-      useCase.execute(isInit, this, reqPageNm, data, req, res);
+      Log.spanStart(useCaseName, "execute");
+      try {
+         useCase.execute(isInit, this, reqPageNm, data, req, res);
+      }
+      finally { Log.spanStop(useCaseName, "execute"); }
       useCase.setReferingUseCase(useCaseName, req);
    }
 
@@ -284,7 +326,7 @@ public class Web extends HttpServlet {
          if(session != null)
             frameNm = (String)session.getAttribute(attr_framingPage);
          if(frameNm == null) frameNm = APP_FRAME_PAGE;
-         log.debug("showWebPage() about to show: "+jspName+" in "+frameNm);
+         log.debug("showWebPage() about to show: {} in {}", jspName, frameNm);
          dispatchReq(frameNm, req, res, true, false);//use include, don't strip attribs
       }
       else
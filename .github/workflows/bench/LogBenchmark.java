@@ -0,0 +1,143 @@
+package izFrame;
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/** LogBenchmark is JMH benchmark of Log hot paths, so overhead of logging can be measured and compared before release:
+<ul> <li> logMessage() throughput at 1, 4, 16 and 64 threads (logMessageT1 ... logMessageT64), plus instance call with {} template
+</li><li> call below logger's level (debug() of INFO logger) - the price every disabled message in the code pays
+</li><li> exception logging, stack text of repeated exception comes from cache as in production
+</li><li> traceStart()/trace()/traceStop() pair of the timed module
+</li><li> appender dispatch: logger with appender that consumes messages, so file writing is not part of the number
+</li></ul>
+Every benchmark runs with <i>mode=sync</i> (caller writes under Log lock, today's default) and <i>mode=async</i> (Log.async=true,
+background writer). Log writes to file in temporary directory with flushPolicy=time, console is off, so numbers show the cost of
+the framework rather than of the console. main() runs everything with GC profiler, which adds allocation rate
+(gc.alloc.rate.norm, bytes per call) to every result.
+<br/><b>Usage</b>: benchmark is kept in bench/ directory, away from application sources, as it needs JMH (jmh-core and
+jmh-generator-annprocess jars, JMH annotation processor generates the harness at compile time):
+<br/><i>javac -cp jmh-core.jar:jmh-generator-annprocess.jar -d bench-classes *.java bench/LogBenchmark.java</i>
+<br/><i>java -cp bench-classes:jmh-core.jar:jopt-simple.jar:commons-math3.jar izFrame.LogBenchmark</i>
+<br/>Standard JMH options work as well: <i>java -cp ... org.openjdk.jmh.Main LogBenchmark.disabled -p mode=sync -prof gc</i>
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LogBenchmark {
+   /** sync - caller writes message under Log lock, async - background writer (Log.async=true) */
+   @Param({"sync", "async"})
+   public String mode;
+
+   private File dir;
+   private Log log, quiet, appended;
+   private Exception ex;
+
+   @Setup(Level.Trial)
+   public void setup() throws IOException {
+      dir = File.createTempFile("izLogBench", "");
+      dir.delete();
+      dir.mkdirs();
+      File config = new File(dir, "izFrame.config");
+      PrintWriter pw = new PrintWriter(new FileWriter(config));
+      pw.println("Log.logFileNm = "+new File(dir, "bench.log").getPath().replace('\\', '/'));
+      pw.println("Log.logToConsole = false");
+      pw.println("Log.level = trace");      //static calls and traceStart() work
+      pw.println("Log.traceTiming = true");
+      pw.println("Log.level@bench.Quiet = info");
+      pw.println("Log.appender@bench.Appended = izFrame.LogBenchmark$CountingAppender");
+      pw.println("Log.flushPolicy = time");
+      pw.println("Log.maxFileSize = 256M"); //rotated files are deleted with the directory
+      pw.println("Log.maxRotatedFiles = 2");
+      pw.println("Log.async = "+"async".equals(mode));
+      pw.println("Log.asyncFullPolicy = block");
+      pw.close();
+      Log.loadConfig(config.getPath());
+      log = Log.getLog("bench.Orders");
+      quiet = Log.getLog("bench.Quiet");
+      appended = Log.getLog("bench.Appended");
+      ex = new IllegalStateException("order rejected", new IOException("connection reset"));
+   }
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      Log.stopAsync(); //next trial loads config with other log file, that closes this one
+      File[] files = dir.listFiles();
+      if(files != null)
+         for(File f : files)
+            f.delete();
+      dir.delete();
+   }
+
+   //--- logMessage() throughput by number of threads ---
+   @Benchmark @Threads(1)
+   public void logMessageT1() {
+      Log.logMessage('I', "order placed", null);
+   }
+   @Benchmark @Threads(4)
+   public void logMessageT4() {
+      Log.logMessage('I', "order placed", null);
+   }
+   @Benchmark @Threads(16)
+   public void logMessageT16() {
+      Log.logMessage('I', "order placed", null);
+   }
+   @Benchmark @Threads(64)
+   public void logMessageT64() {
+      Log.logMessage('I', "order placed", null);
+   }
+   /** instance logger, message built from {} template */
+   @Benchmark
+   public void informTemplate() {
+      log.inform("order {} placed by {}", 42, "lana");
+   }
+
+   //--- other hot paths ---
+   /** debug() of INFO logger: level check only */
+   @Benchmark
+   public void disabled() {
+      quiet.debug("order {} placed by {}", 42, "lana");
+   }
+   /** same exception again and again, its stack text is cached */
+   @Benchmark
+   public void exception() {
+      log.error(ex, "order {} failed", 42);
+   }
+   /** timed module with one intermediate step */
+   @Benchmark
+   public void tracePair() {
+      Log.traceStart("bench", "placeOrder");
+      Log.trace("bench", "validated");
+      Log.traceStop("bench");
+   }
+   /** message goes to appender that consumes it */
+   @Benchmark
+   public void appender() {
+      appended.inform("order {} placed by {}", 42, "lana");
+   }
+
+   /** appender of appender() benchmark: counts messages and consumes them */
+   public static class CountingAppender implements Log.Appender {
+      static final AtomicLong count = new AtomicLong();
+      public boolean logMessage(char level, String loggedClassName, String msg, Exception e) {
+         count.incrementAndGet();
+         return true;
+      }
+   }
+
+   /** runs all benchmarks of the class with GC profiler (allocation rate per call) */
+   public static void main(String[] args) throws RunnerException {
+      Options opt = new OptionsBuilder()
+            .include(LogBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build();
+      new Runner(opt).run();
+   }
+}